@@ -0,0 +1,59 @@
+/**
+ * A request for one block of a piece, as sent in a request,
+ * piece or cancel message.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class BlockRequest {
+
+	/**
+	 * The piece index
+	 */
+	public final int index;
+	/**
+	 * The offset of the block within the piece
+	 */
+	public final int begin;
+	/**
+	 * The length of the block
+	 */
+	public final int length;
+	
+	BlockRequest(int index, int begin, int length)
+	{
+		this.index = index;
+		this.begin = begin;
+		this.length = length;
+	}
+	
+	/**
+	 * Checks if this request is for the given block
+	 * @param index
+	 * @param begin
+	 * @param length
+	 * @return
+	 */
+	public boolean matches(int index, int begin, int length)
+	{
+		return this.index == index && this.begin == begin && this.length == length;
+	}
+	
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof BlockRequest))
+			return false;
+		BlockRequest r = (BlockRequest)o;
+		return matches(r.index, r.begin, r.length);
+	}
+	
+	public int hashCode()
+	{
+		return (index * 31 + begin) * 31 + length;
+	}
+	
+	public String toString()
+	{
+		return "i="+index+" o="+begin+" l="+length;
+	}
+}
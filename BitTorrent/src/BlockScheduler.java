@@ -0,0 +1,253 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Hands out the blocks of the pieces being downloaded to the PeerControllers.
+ * <br>Instead of a piece belonging to a single PeerController, every piece
+ * in progress is shared: a controller first asks for free blocks of the pieces
+ * already started that its peer has, oldest first, and only starts a new
+ * piece from the RUBTClient picker when there are none. Several peers can so
+ * fetch a piece in parallel and a slow peer holds up a single block,
+ * not a whole piece.
+ * <br>Once every block left is requested the scheduler goes into endgame:
+ * the outstanding blocks are requested again from every other peer that
+ * has them and, as soon as one copy arrives, cancelled everywhere else.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class BlockScheduler {
+
+	private RUBTClient 								rubt;
+	private Logger 									logger;
+	private LinkedHashMap<Integer,PartialPiece> 	active;
+	private boolean 								incremental;
+	
+	private boolean 								endgame;
+	private long 									endgame_start;
+	private long 									endgame_time;
+	private long 									duplicate_requests;
+	private long 									wasted_bytes;
+	
+	BlockScheduler(RUBTClient r)
+	{
+		rubt = r;
+		logger = r.logger;
+		active = new LinkedHashMap<Integer,PartialPiece>();
+		incremental = PieceVerifier.MODE_INCREMENTAL.equals(RUBTClient.HASH_MODE);
+	}
+	
+	/**
+	 * Picks the next block for a controller to request
+	 * @param pc
+	 * @return the block, or null if there is nothing the peer can give us
+	 */
+	public synchronized BlockRequest next(PeerController pc)
+	{
+		for(PartialPiece p : active.values())
+		{
+			if(p.hasFree() && pc.pieceExists(p.index) && !pc.isSuspect(p.index))
+				return p.requestFree(pc);
+		}
+		
+		//only start a piece when the verifier and the disk keep up and there is memory to assemble it in
+		ByteBuffer buf = null;
+		if(!rubt.getPieceVerifier().isBacklogged() && !rubt.getDiskWriter().isBacklogged())
+			buf = rubt.getPieceBufferPool().acquire(rubt.torrent_file.piece_length);
+		if(buf != null)
+		{
+			int index = rubt.getNextPieceToDownload(pc);
+			if(index >= 0)
+			{
+				int length = rubt.getPieceLength(index);
+				buf.limit(length);
+				PartialPiece p = new PartialPiece(index, length, buf, newHasher());
+				active.put(index, p);
+				return p.requestFree(pc);
+			}
+			rubt.getPieceBufferPool().release(buf);
+		}
+		
+		//nothing else to do, help with the pieces our peer is suspected of corrupting
+		for(PartialPiece p : active.values())
+		{
+			if(p.hasFree() && pc.pieceExists(p.index))
+				return p.requestFree(pc);
+		}
+		
+		//every block left is requested, ask this peer for them too
+		if(active.isEmpty() || rubt.getPickableCount() > 0)
+			return null;
+		for(PartialPiece p : active.values())
+		{
+			if(p.hasFree() || !pc.pieceExists(p.index))
+				continue;
+			BlockRequest r = p.requestDuplicate(pc);
+			if(r != null)
+			{
+				if(!endgame)
+				{
+					endgame = true;
+					endgame_start = System.nanoTime();
+					logger.info("Entering endgame with "+active.size()+" pieces left");
+				}
+				duplicate_requests++;
+				return r;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Puts a received block in its piece. In endgame the other controllers
+	 * the block was requested from are told to cancel it.
+	 * @param pc the controller the block came from
+	 * @param index
+	 * @param begin
+	 * @param block
+	 * @return the piece if this block completed it, it is then no longer scheduled
+	 * and must be handed to the PieceVerifier, null otherwise.
+	 * When hashing incrementally it is the piece whose last block was hashed by this call.
+	 */
+	public PartialPiece received(PeerController pc, int index, int begin, ByteBuffer block)
+	{
+		int length = block.remaining();
+		PartialPiece done = null;
+		PartialPiece p;
+		ArrayList<PeerController> others;
+		synchronized(this){
+			p = active.get(index);
+			others = p == null ? null : p.receive(begin, block, pc);
+			if(others == null)
+			{
+				//a copy of a block we already have
+				wasted_bytes += length;
+				return null;
+			}
+			if(p.isComplete())
+			{
+				active.remove(index);
+				p.buf.rewind();
+				done = p;
+				if(endgame && active.isEmpty())
+				{
+					endgame = false;
+					endgame_time += System.nanoTime() - endgame_start;
+					logger.info("Endgame finished in "+(System.nanoTime() - endgame_start)/1000000+" ms");
+				}
+			}
+		}
+		//outside the lock, the controllers take their pipeline's lock
+		for(PeerController other : others)
+			other.cancelRequest(new BlockRequest(index, begin, length));
+		//hashing also stays out of the lock so the other controllers are not held up
+		if(p.hasher != null)
+			done = p.hashBlock(begin, length) ? p : null;
+		return done;
+	}
+	
+	/**
+	 * Gives a requested block back, because the request was cancelled,
+	 * dropped by a choke or the peer went away
+	 * @param r
+	 * @param pc
+	 */
+	public synchronized void abandon(BlockRequest r, PeerController pc)
+	{
+		PartialPiece p = active.get(r.index);
+		if(p == null)
+			return;
+		p.abandon(r.begin, pc);
+		if(p.isIdle())
+		{
+			//nothing of the piece is in, hand it back to the picker
+			active.remove(r.index);
+			rubt.getPieceBufferPool().release(p.buf);
+			rubt.iAmDying(pc, r.index);
+		}
+	}
+	
+	/**
+	 * Counts a block that arrived after we cancelled it
+	 * @param length
+	 */
+	public synchronized void wasted(int length)
+	{
+		wasted_bytes += length;
+	}
+	
+	/**
+	 * Returns the no of pieces being downloaded
+	 * @return
+	 */
+	public synchronized int getActiveCount()
+	{
+		return active.size();
+	}
+	
+	/**
+	 * Returns the no of pieces being downloaded that still have blocks to hand out
+	 * @return
+	 */
+	public synchronized int getOpenCount()
+	{
+		int count = 0;
+		for(PartialPiece p : active.values())
+			if(p.hasFree())
+				count++;
+		return count;
+	}
+	
+	/**
+	 * Checks if the scheduler is in endgame
+	 * @return
+	 */
+	public synchronized boolean isEndgame()
+	{
+		return endgame;
+	}
+	
+	/**
+	 * Returns the time in ms spent in endgame, including the current one
+	 * @return
+	 */
+	public synchronized long getEndgameTime()
+	{
+		long time = endgame_time;
+		if(endgame)
+			time += System.nanoTime() - endgame_start;
+		return time / 1000000;
+	}
+	
+	/**
+	 * Returns the no of blocks requested from more than one peer
+	 * @return
+	 */
+	public synchronized long getDuplicateRequests()
+	{
+		return duplicate_requests;
+	}
+	
+	/**
+	 * Returns the no of bytes downloaded more than once
+	 * @return
+	 */
+	public synchronized long getWastedBytes()
+	{
+		return wasted_bytes;
+	}
+	
+	private PieceHasher newHasher()
+	{
+		if(!incremental)
+			return null;
+		try {
+			return new PieceHasher(RUBTClient.REORDER_WINDOW);
+		} catch (Exception e) {
+			logger.error("SHA-1 not available, falling back to hashing whole pieces");
+			incremental = false;
+			return null;
+		}
+	}
+}
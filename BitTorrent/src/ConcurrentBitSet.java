@@ -0,0 +1,182 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bit set that can be read and written from any thread without locking.
+ * <br>The bits are kept in an AtomicLongArray and changed with compare and set,
+ * the no of set bits is counted as they change so {@link #cardinality()} is O(1).
+ * Used for the piece state shared between the RUBTClient, the PeerControllers and the GUI.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class ConcurrentBitSet {
+
+	private final AtomicLongArray 	words;
+	private final AtomicInteger 	count;
+	private final int 				size;
+	
+	/**
+	 * @param size the no of bits
+	 */
+	ConcurrentBitSet(int size)
+	{
+		this.size = size;
+		words = new AtomicLongArray((size + 63) >>> 6);
+		count = new AtomicInteger();
+	}
+	
+	/**
+	 * Returns the value of bit i
+	 * @param i
+	 * @return
+	 */
+	public boolean get(int i)
+	{
+		return (words.get(i >>> 6) & (1L << i)) != 0;
+	}
+	
+	/**
+	 * Sets bit i
+	 * @param i
+	 * @return false if it was already set
+	 */
+	public boolean set(int i)
+	{
+		check(i);
+		int w = i >>> 6;
+		long mask = 1L << i;
+		long old;
+		do {
+			old = words.get(w);
+			if((old & mask) != 0)
+				return false;
+		} while(!words.compareAndSet(w, old, old | mask));
+		count.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Clears bit i
+	 * @param i
+	 * @return false if it was already clear
+	 */
+	public boolean clear(int i)
+	{
+		check(i);
+		int w = i >>> 6;
+		long mask = 1L << i;
+		long old;
+		do {
+			old = words.get(w);
+			if((old & mask) == 0)
+				return false;
+		} while(!words.compareAndSet(w, old, old & ~mask));
+		count.decrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Sets bit i to value
+	 * @param i
+	 * @param value
+	 * @return false if it already had the value
+	 */
+	public boolean set(int i, boolean value)
+	{
+		return value ? set(i) : clear(i);
+	}
+	
+	/**
+	 * Sets every bit that is set in bs
+	 * @param bs
+	 */
+	public void or(BitSet bs)
+	{
+		for(int i=bs.nextSetBit(0);i>=0 && i<size;i=bs.nextSetBit(i+1))
+			set(i);
+	}
+	
+	/**
+	 * Returns the index of the first set bit at or after from
+	 * @param from
+	 * @return the index or -1 if there is none
+	 */
+	public int nextSetBit(int from)
+	{
+		if(from < 0 || from >= size)
+			return -1;
+		int w = from >>> 6;
+		long word = words.get(w) & (-1L << from);
+		while(true)
+		{
+			if(word != 0)
+			{
+				int i = (w << 6) + Long.numberOfTrailingZeros(word);
+				return i < size ? i : -1;
+			}
+			if(++w == words.length())
+				return -1;
+			word = words.get(w);
+		}
+	}
+	
+	/**
+	 * Returns the no of bits set
+	 * @return
+	 */
+	public int cardinality()
+	{
+		return count.get();
+	}
+	
+	/**
+	 * Returns the no of bits
+	 * @return
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Checks if every bit is set
+	 * @return
+	 */
+	public boolean isFull()
+	{
+		return count.get() == size;
+	}
+	
+	/**
+	 * Returns a copy of the bits as a bitfield message payload,
+	 * the first bit being the high bit of the first byte
+	 * @return
+	 */
+	public byte[] toBitfield()
+	{
+		byte[] bytes = new byte[(size + 7) >>> 3];
+		for(int i=nextSetBit(0);i>=0;i=nextSetBit(i+1))
+			bytes[i >>> 3] |= 0x80 >>> (i & 7);
+		return bytes;
+	}
+	
+	/**
+	 * Returns a copy of the bits as a BitSet
+	 * @return
+	 */
+	public BitSet toBitSet()
+	{
+		BitSet bs = new BitSet(size);
+		for(int i=nextSetBit(0);i>=0;i=nextSetBit(i+1))
+			bs.set(i);
+		return bs;
+	}
+	
+	private void check(int i)
+	{
+		if(i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("bit "+i+" of "+size);
+	}
+}
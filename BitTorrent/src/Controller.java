@@ -1,30 +1,59 @@
 import java.awt.event.ActionEvent;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main class that Controls all the Threads. <br>
+ * The Controller thread blocks on the queue of peers waiting to be connected,
+ * the periodic work (choking, tracker announces, transfer rates) runs on a
+ * scheduled executor so nothing spins while the client is idle.
  * 
  * @author Harshil Shah
  * @author Tedd Noh
  */
 public class Controller extends Thread{
 
+	/**
+	 * Peers are driven by PeerEventLoops
+	 */
+	public final static String			TRANSPORT_NIO    = "nio";
+	/**
+	 * Every peer gets its own PeerController thread
+	 */
+	public final static String			TRANSPORT_THREAD = "thread";
+	/**
+	 * Every peer session runs on a virtual thread blocking on its socket
+	 */
+	public final static String			TRANSPORT_VIRTUAL = "virtual";
+	
 	private Tracker 					tracker;
 	private Logger 						logger;
 	private TorrentInfo 				torrent_file;
-	private ArrayList<Peer> 			peers;
-	private ArrayList<PeerController> 	peer_controllers;
-	private PriorityQueue<Peer> 		waiting_list;
+	private List<Peer> 					peers;
+	private List<PeerController> 		peer_controllers;
+	private BlockingQueue<Peer> 		waiting_list;
+	private ScheduledExecutorService	scheduler;
 	private IncomingController 			in_controller;
 	private TrackerController 			tracker_controller;
+	private PeerEventLoop[]				event_loops;
 	private RUBTClient 					rubt;
 	private boolean 					am_alive;
+	private int 						controller_count;
 	/**
 	 * The rate at which the client is uploading
 	 */
@@ -41,40 +70,69 @@ public class Controller extends Thread{
 	 * The average rate at which the client is downloading
 	 */
 	public double						avg_down_rate;
-	private Calendar					cal;
-	private Object						waiting_list_lock;
+	private HashSet<String>				banned;
+	private RateMeter					up_meter;
+	private RateMeter					down_meter;
+	private PeerController				optimistic;
+	private int							choke_round;
+	//seeding choker: consecutive rounds each peer has been unchoked and the round it was last unchoked in
+	private HashMap<PeerController,Integer>	unchoked_rounds;
+	private HashMap<PeerController,Integer>	last_unchoked;
+	private Random						random;
 	public Controller(RUBTClient r,Tracker t)
 	{
 		rubt = r;
 		logger = r.logger;
 		torrent_file = r.torrent_file;
 		tracker = t;
-		peers = new ArrayList<Peer>();
+		//read by the scheduler and gui threads while the controller adds to them
+		peers = new CopyOnWriteArrayList<Peer>();
 		tracker_controller = new TrackerController(r,t,this);
-		peer_controllers = new ArrayList<PeerController>();
+		peer_controllers = new CopyOnWriteArrayList<PeerController>();
 		in_controller  = new IncomingController(rubt, this);
-		waiting_list = new PriorityQueue<Peer>();
+		waiting_list = new PriorityBlockingQueue<Peer>();
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory(){
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Controller-scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		am_alive = true;
 		up_rate = 0;
 		down_rate = 0;
 		avg_up_rate = 0;
 		avg_down_rate = 0;
-		cal = Calendar.getInstance();
-		waiting_list_lock = new Object();
+		banned = new HashSet<String>();
+		up_meter = new RateMeter(RUBTClient.RATE_WINDOW);
+		down_meter = new RateMeter(RUBTClient.RATE_WINDOW);
+		random = new Random();
+		unchoked_rounds = new HashMap<PeerController,Integer>();
+		last_unchoked = new HashMap<PeerController,Integer>();
 	}
 	
-	ArrayList<Peer> getPeerList()
+	List<Peer> getPeerList()
 	{
 		return peers;
 	}
 	
+	/**
+	 * Returns the controllers of the connected peers
+	 * @return
+	 */
+	List<PeerController> getPeerControllers()
+	{
+		return peer_controllers;
+	}
+	
 	/**
 	 * Performs the following functions.
 	 * <ul>
 	 * <li>Initializes
-	 * <li>Starts up the tracker controller.
+	 * <li>Schedules the tracker announces, the choker and the rate updates.
 	 * <li>Starts up the "server" IncomingController thread.
-	 * <li>Assigns peers their peer controllers.
+	 * <li>Assigns peers their peer controllers as they are queued.
 	 * </ul>
 	 */
 	public void run()
@@ -85,38 +143,45 @@ public class Controller extends Thread{
 			
 			_init_();
 			
-			tracker_controller.start();
+			//the file was complete when the client started
+			if(rubt.startSeeding())
+				logger.info("File is complete, seeding");
+			
+			if(TRANSPORT_NIO.equals(RUBTClient.TRANSPORT))
+			{
+				event_loops = new PeerEventLoop[RUBTClient.EVENT_LOOPS];
+				for(int i=0;i<event_loops.length;i++)
+				{
+					event_loops[i] = new PeerEventLoop(rubt,i+"");
+					event_loops[i].start();
+				}
+			}
+			
+			tracker_controller.schedule(scheduler);
+			scheduler.scheduleAtFixedRate(new Task("choker"){
+				void runTask() { rechoke(); }
+			}, RUBTClient.CHOKE_INTERVAL, RUBTClient.CHOKE_INTERVAL, TimeUnit.SECONDS);
+			scheduler.scheduleAtFixedRate(new Task("rates"){
+				void runTask() { updateRates(); }
+			}, 1, 1, TimeUnit.SECONDS);
 			
 			in_controller.start();
 
-			long check_point = Calendar.getInstance().getTimeInMillis() + 30000;
+			//assigns peer controllers to the peers as they are queued
 			while(am_alive)
 			{
-				//Thread.yield();
-				//assigns peer controllers to the peers waiting
-				synchronized(waiting_list_lock){
-					while(!waiting_list.isEmpty() /*&& getUnchokeCount() <= 10*/)
-					{
-						Peer p = waiting_list.peek();
-						peers.add(p);
-						
-						if(rubt.gui!=null)
-							rubt.gui.update(new ActionEvent(this,GUI.NEW_PEER,""));
-							
-						assignController(p);
-						//System.out.println(waiting_list.size());
-						waiting_list.remove();
-					}
+				Peer p;
+				try {
+					p = waiting_list.take();
+				} catch (InterruptedException ie) {
+					continue;
 				}
-				if (Calendar.getInstance().getTimeInMillis() >= check_point)
-				{
-					System.out.println("CHECKPOINT REACHED");
-					
-					chokeWorstPeer();
-					unchokeRandomPeer();
+				peers.add(p);
+				
+				if(rubt.gui!=null)
+					rubt.gui.update(new ActionEvent(this,GUI.NEW_PEER,""));
 					
-					check_point += 30000;
-				}
+				assignController(p);
 			}
 			
 		} catch (Exception e) {
@@ -128,50 +193,182 @@ public class Controller extends Thread{
 		
 	}
 	
-	private boolean chokeWorstPeer()
+	/**
+	 * Periodic work run on the scheduler. An exception is logged rather than
+	 * thrown, which would cancel the task for good.
+	 */
+	private abstract class Task implements Runnable
 	{
-		if (peer_controllers.size() == 0 )
-			return false;
+		private String name;
 		
-		if (!peer_controllers.get(0).isAlive())
-			return false;
+		Task(String name)
+		{
+			this.name = name;
+		}
 		
-		boolean is_seeding = rubt.noPiecesCompleted() == rubt.getNoPieces();
-		Peer worst = peer_controllers.get(0).peer;
+		abstract void runTask();
 		
-		for (int i=1; i<peer_controllers.size(); i++)
+		public void run()
 		{
-			
-			if (peer_controllers.get(i).isAlive())
-			{
-				if (is_seeding)
-				{
-					if (peer_controllers.get(i).peer.avg_down_rate < worst.avg_down_rate)
-						worst = peer_controllers.get(i).peer;
-				} else
+			try {
+				runTask();
+			} catch (Exception e) {
+				logger.error("Controller task "+name+" failed: "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Choker, run every CHOKE_INTERVAL seconds.
+	 * <br>While downloading it is tit for tat: the UPLOAD_CAP interested peers that send
+	 * to us fastest are unchoked. One more interested peer is picked at random as the
+	 * optimistic unchoke and kept for OPTIMISTIC_ROUNDS rounds, so new peers get a chance
+	 * to show their rate. Once seeding the slots go round robin, see {@link #pickSeedUnchokes(ArrayList)}.
+	 * All other peers are choked.
+	 */
+	private void rechoke()
+	{
+		ArrayList<PeerController> interested = new ArrayList<PeerController>();
+		for (PeerController pc : peer_controllers)
+		{
+			if (pc.isRunning() && pc.peer.isPeerInterested())
+				interested.add(pc);
+		}
+		
+		ArrayList<PeerController> unchoke;
+		if (rubt.isSeeding())
+			unchoke = pickSeedUnchokes(interested);
+		else
+		{
+			Collections.sort(interested, new Comparator<PeerController>(){
+				public int compare(PeerController a, PeerController b)
 				{
-					if (peer_controllers.get(i).peer.avg_up_rate < worst.avg_up_rate)
-						worst = peer_controllers.get(i).peer;
+					return Double.compare(b.getDownloadRate(), a.getDownloadRate());
 				}
-			}
+			});
+			
+			unchoke = new ArrayList<PeerController>(
+					interested.subList(0, Math.min(RUBTClient.UPLOAD_CAP, interested.size())));
+			
+			//keep the optimistic unchoke for a few rounds, then move it on
+			ArrayList<PeerController> others = new ArrayList<PeerController>(interested.subList(unchoke.size(), interested.size()));
+			if (optimistic == null || !others.contains(optimistic) || choke_round % RUBTClient.OPTIMISTIC_ROUNDS == 0)
+				optimistic = others.isEmpty() ? null : others.get(random.nextInt(others.size()));
+			if (optimistic != null)
+				unchoke.add(optimistic);
 		}
+		choke_round++;
 		
-		//Chokes worst peer
-		worst.choke();System.out.println(worst.getPeerID() + " has been choked.");System.out.println("up: " + worst.avg_up_rate + " down: " + worst.avg_down_rate);
-		return true;
+		for (PeerController pc : peer_controllers)
+		{
+			if (!pc.isRunning())
+				continue;
+			if (unchoke.contains(pc))
+			{
+				if (pc.peer.isClientChoking())
+					pc.peer.unchoke();
+			}
+			else if (!pc.peer.isClientChoking())
+				pc.peer.choke();
+		}
+		logger.debug("Rechoked: "+unchoke.size()+" of "+interested.size()+" interested peers unchoked");
 	}
 	
-	private boolean unchokeRandomPeer()
+	/**
+	 * Picks the peers to unchoke while seeding.
+	 * <br>A peer keeps its slot for SEED_ROUNDS rounds, after that it gives it up to the
+	 * peer that has waited longest, so every interested peer gets served in turn.
+	 * Peers whose turn is over only stay unchoked if nobody is waiting, the ones we
+	 * upload to fastest first. There is no optimistic unchoke, the rotation does its job.
+	 * @param interested
+	 * @return
+	 */
+	private ArrayList<PeerController> pickSeedUnchokes(ArrayList<PeerController> interested)
 	{
-		ArrayList<Peer> choked = getChokeArray();
-		int index = (int) (Math.random() * choked.size());
+		final HashMap<PeerController,Integer> last = last_unchoked;
+		Comparator<PeerController> by_upload = new Comparator<PeerController>(){
+			public int compare(PeerController a, PeerController b)
+			{
+				return Double.compare(b.getUploadRate(), a.getUploadRate());
+			}
+		};
+		Comparator<PeerController> by_wait = new Comparator<PeerController>(){
+			public int compare(PeerController a, PeerController b)
+			{
+				int la = last.containsKey(a) ? last.get(a) : -1;
+				int lb = last.containsKey(b) ? last.get(b) : -1;
+				return la != lb ? la - lb : Double.compare(b.getUploadRate(), a.getUploadRate());
+			}
+		};
+		
+		//forget the peers that are gone
+		for (Iterator<PeerController> it = last_unchoked.keySet().iterator(); it.hasNext();)
+			if (!it.next().isRunning())
+				it.remove();
 		
-		if (choked == null || choked.size() == 0)
-			return false;
+		ArrayList<PeerController> in_turn = new ArrayList<PeerController>();
+		ArrayList<PeerController> waiting = new ArrayList<PeerController>();
+		ArrayList<PeerController> done = new ArrayList<PeerController>();
+		for (PeerController pc : interested)
+		{
+			Integer rounds = unchoked_rounds.get(pc);
+			if (pc.peer.isClientChoking() || rounds == null)
+				waiting.add(pc);
+			else if (rounds < RUBTClient.SEED_ROUNDS)
+				in_turn.add(pc);
+			else
+				done.add(pc);
+		}
+		Collections.sort(in_turn, by_upload);
+		Collections.sort(waiting, by_wait);
+		Collections.sort(done, by_upload);
 		
-		choked.get(index).unchoke();System.out.println(choked.get(index).getPeerID() + " has been unchoked.");
+		ArrayList<PeerController> order = new ArrayList<PeerController>(in_turn);
+		order.addAll(waiting);
+		order.addAll(done);
+		ArrayList<PeerController> unchoke = new ArrayList<PeerController>(
+				order.subList(0, Math.min(RUBTClient.UPLOAD_CAP, order.size())));
 		
-		return true;
+		HashMap<PeerController,Integer> rounds = new HashMap<PeerController,Integer>();
+		for (PeerController pc : unchoke)
+		{
+			Integer r = unchoked_rounds.get(pc);
+			rounds.put(pc, r == null || pc.peer.isClientChoking() ? 1 : r + 1);
+			last_unchoked.put(pc, choke_round);
+		}
+		unchoked_rounds = rounds;
+		return unchoke;
+	}
+	
+	/**
+	 * Called once when the download completes, or at start up when the file is
+	 * already complete. Drops the connections to other seeds, they have nothing
+	 * to give us and want nothing from us, and tells the others we are no longer interested.
+	 */
+	private void seedingStarted()
+	{
+		int dropped = 0;
+		for (PeerController pc : peer_controllers)
+		{
+			if (!pc.isRunning())
+				continue;
+			if (pc.dropIfSeed())
+				dropped++;
+			else if (pc.peer.isClientInterested())
+				pc.peer.uninterested();
+		}
+		logger.info("Seeding, closed "+dropped+" connections to other seeds");
+	}
+	
+	/**
+	 * Called when a peer sent us an interested message, it is unchoked
+	 * right away if an upload slot is free
+	 * @param pc
+	 */
+	public void interestReceived(PeerController pc)
+	{
+		if (pc.peer.isClientChoking() && getUnchokeCount() < RUBTClient.UPLOAD_CAP)
+			pc.peer.unchoke();
 	}
 	
 	/**
@@ -181,9 +378,9 @@ public class Controller extends Thread{
 	public int getUnchokeCount()
 	{
 		int count = 0;
-		for (int i=0; i<peer_controllers.size(); i++)
+		for (PeerController pc : peer_controllers)
 		{
-			if (peer_controllers.get(i).isAlive() && !peer_controllers.get(i).peer.isClientChoking())
+			if (pc.isRunning() && !pc.peer.isClientChoking())
 				count++;
 		}
 		
@@ -198,10 +395,10 @@ public class Controller extends Thread{
 	{
 		ArrayList<Peer> unchoked = new ArrayList<Peer>();
 		
-		for (int i=0; i<peer_controllers.size(); i++)
+		for (PeerController pc : peer_controllers)
 		{
-			if (peer_controllers.get(i).isAlive() && peer_controllers.get(i).peer.isClientChoking())
-				unchoked.add(peer_controllers.get(i).peer);
+			if (pc.isRunning() && pc.peer.isClientChoking())
+				unchoked.add(pc.peer);
 		}
 		
 		return unchoked;
@@ -213,9 +410,9 @@ public class Controller extends Thread{
 	public int getActiveCount()
 	{
 		int count=0;
-		for(int i=0;i<peer_controllers.size();i++)
+		for(PeerController pc : peer_controllers)
 		{
-			if(peer_controllers.get(i).isAlive())
+			if(pc.isRunning())
 				count++;
 		}
 		return count;
@@ -252,21 +449,68 @@ public class Controller extends Thread{
 		if (p.handshake() && p.confirmHandshake())
 		{
 			//send bitfield message
-			BitSet tmp = rubt.getCompletedBitSet();
-			boolean exists = false;
-			for(int i=0;i<tmp.size();i++)
-				if(tmp.get(i)){
-					exists = true;
-					break;
-				}
-			if(exists)
-			p.bitfield(rubt.getCompletedBitSet());
+			if(rubt.getCompletedBitSet().cardinality() > 0)
+				p.bitfield(rubt.getCompletedBitSet().toBitfield());
 			
 			//creates the peer controller and assign it the peer
-			PeerController d = new PeerController(rubt,this,peer_controllers.size()+"",p,tracker, torrent_file);
+			//ids are never reused, controllers leave the list when they die
+			PeerController d = new PeerController(rubt,this,controller_count+"",p,tracker, torrent_file);
 			peer_controllers.add(d);
 			logger.debug("PeerController "+d.getPCId()+" assigned peer "+p.getPeerID());
-			d.start();
+			if(event_loops!=null)
+				event_loops[controller_count % event_loops.length].register(d);
+			else if(TRANSPORT_VIRTUAL.equals(RUBTClient.TRANSPORT))
+			{
+				final PeerController pc = d;
+				startVirtual("PeerController-"+d.getPCId(), new Runnable(){
+					public void run()
+					{
+						pc.runBlocking();
+					}
+				});
+			}
+			else
+				d.start();
+			controller_count++;
+		}
+		else
+			peers.remove(p);
+	}
+	
+	/**
+	 * Called by a PeerController once it is dead, it and its peer are taken
+	 * out of the lists so they do not pile up over a long session
+	 * @param pc
+	 */
+	void controllerDied(PeerController pc)
+	{
+		peer_controllers.remove(pc);
+		peers.remove(pc.peer);
+		if(rubt.gui!=null)
+			rubt.gui.update(new ActionEvent(this,GUI.NEW_PEER,""));
+	}
+	
+	/**
+	 * Runs a peer session on a virtual thread.
+	 * <br>Virtual threads are looked up reflectively so the client still builds and runs
+	 * on older JDKs, where it falls back to a daemon platform thread.
+	 * @param name
+	 * @param session
+	 * @return the started thread
+	 */
+	private Thread startVirtual(String name, Runnable session)
+	{
+		try {
+			Class<?> builder_class = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builder_class.getMethod("name", String.class).invoke(builder, name);
+			return (Thread) builder_class.getMethod("start", Runnable.class).invoke(builder, session);
+		} catch (Exception e) {
+			logger.debug("Virtual threads not available, running "+name+" on a platform thread");
+			Thread t = new Thread(session, name);
+			t.setDaemon(true);
+			t.start();
+			return t;
 		}
 	}
 	
@@ -276,14 +520,35 @@ public class Controller extends Thread{
 	 */
 	public void addPeer(Peer p)
 	{
-		//if peer not already assigned
-		if (!doesPeerExist(p))
+		//if peer not already assigned nor banned
+		if (!doesPeerExist(p) && !isBanned(p))
 		{
-			synchronized(waiting_list_lock){
-				//adds the peer to the waiting list
-				//System.out.println("Adding peer "+p.getPeerID()+" to waiting list");
-				waiting_list.add(p);
-			}
+			//adds the peer to the waiting list, wakes the controller up
+			waiting_list.add(p);
+		}
+	}
+	
+	/**
+	 * Bans a peer that sent corrupt data, it will not be connected to again
+	 * @param p
+	 */
+	public void ban(Peer p)
+	{
+		synchronized(banned){
+			banned.add(p.getPeerIP());
+		}
+		logger.info("Peer "+p.getPeerID()+" at "+p.getPeerIP()+" has been banned");
+	}
+	
+	/**
+	 * Checks if a peer has been banned
+	 * @param p
+	 * @return
+	 */
+	public boolean isBanned(Peer p)
+	{
+		synchronized(banned){
+			return banned.contains(p.getPeerIP());
 		}
 	}
 	
@@ -295,9 +560,11 @@ public class Controller extends Thread{
 	private boolean doesPeerExist(Peer p)
 	{
 		//checks to see if the peer is already assigned a peer controller
+		//a peer whose connection was closed may connect again
 		//System.out.println("Checking peer "+p.getPeerID());
-		for(int i=0;i<peers.size();i++)
-			if(peers.get(i).getPeerID().equals(p.getPeerID()) && peers.get(i).getPeerIP().equals(p.getPeerIP()))
+		for(Peer q : peers)
+			if(q.getPeerID().equals(p.getPeerID()) && q.getPeerIP().equals(p.getPeerIP())
+					&& q.getPeerSocket()!=null && !q.getPeerSocket().isClosed())
 			{
 				//System.out.println("peer exists "+p.getPeerID());
 				return true;
@@ -326,57 +593,50 @@ public class Controller extends Thread{
 	public void sendHave(int piece, PeerController p)
 	{
 		//check to see if the download is complete.
-		//if so send tracker the completed message
-		if(rubt.isCompleted())
+		//if so switch to seeding and send tracker the completed message
+		if(rubt.isCompleted() && rubt.startSeeding())
 		{
+			seedingStarted();
 			tracker_controller.sendCompleted();
 		}
 		
 		//sends a have message to all the peers
-		for(int i=0;i<peer_controllers.size();i++)
+		for(PeerController pc : peer_controllers)
 		{
-			if(p.getPCId()!=peer_controllers.get(i).getPCId())
-			peer_controllers.get(i).addToQueue(piece);
-				//peer_controllers.get(i).peer.have(piece);
+			if(p.getPCId()!=pc.getPCId())
+			pc.addToQueue(piece);
+				//pc.peer.have(piece);
 		}
 	}
 	
-	public void onUpload()
+	/**
+	 * Counts bytes uploaded to any peer for the overall rates
+	 * @param length
+	 */
+	public void onUpload(int length)
 	{
-		double sum1=0;
-		double sum2=0;
-		int count =0;
-		for(int i=0;i<peers.size();i++)
-		{
-			if(peers.get(i).getPeerSocket()!=null && !peers.get(i).getPeerSocket().isClosed())
-			{
-				count++;
-				sum1+=peers.get(i).down_rate;
-				sum2+=peers.get(i).avg_down_rate;				
-			}
-		}
-		up_rate = sum1/count;
-		avg_up_rate = sum2/count;
-		//avg_up_rate = rubt.getDownloadedBytes()/(1000*(Calendar.getInstance().getTimeInMillis()-cal.getTimeInMillis()));
+		up_meter.add(length);
 	}
 	
-	public void onDownload()
+	/**
+	 * Counts bytes downloaded from any peer for the overall rates
+	 * @param length
+	 */
+	public void onDownload(int length)
 	{
-		double sum1=0;
-		double sum2=0;
-		int count =0;
-		for(int i=0;i<peers.size();i++)
-		{
-			if(!peers.get(i).getPeerSocket().isClosed())
-			{
-				count++;
-				sum1+=peers.get(i).up_rate;
-				sum2+=peers.get(i).avg_up_rate;
-			}
-		}
-		down_rate = sum1/count;
-		avg_down_rate = sum2/count;
-		//avg_up_rate = rubt.getUploadedBytes()/(1000*(Calendar.getInstance().getTimeInMillis()-cal.getTimeInMillis()));
+		down_meter.add(length);
+	}
+	
+	/**
+	 * Refreshes the overall rates once a second, so they also drop when nothing is transferred
+	 */
+	private void updateRates()
+	{
+		//rates shown in kB/s
+		up_rate = up_meter.getRate()/1000;
+		avg_up_rate = up_meter.getAverage()/1000;
+		down_rate = down_meter.getRate()/1000;
+		avg_down_rate = down_meter.getAverage()/1000;
 	}
 	
 	/**
@@ -385,18 +645,28 @@ public class Controller extends Thread{
 	public void close()
 	{
 		//closes the peer controllers
-		for(int i=0;i<peer_controllers.size();i++)
-			if(peer_controllers.get(i).isAlive())
-				peer_controllers.get(i).suicide();
+		//the list is a snapshot while iterating, dying controllers take themselves out of it
+		for(PeerController pc : peer_controllers)
+			if(pc.isRunning())
+				pc.suicide();
+		
+		//closes the event loops
+		if(event_loops!=null)
+			for(int i=0;i<event_loops.length;i++)
+				event_loops[i].suicide();
 		
 		//closes the tracker controller
 		tracker_controller.suicide();
 		
+		//stops the periodic work
+		scheduler.shutdownNow();
+		
 		//closes the server
 		in_controller.suicide();
 		
 		//closes self
 		am_alive = false;
+		this.interrupt();
 	}
 
 }
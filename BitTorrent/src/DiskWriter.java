@@ -0,0 +1,121 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes verified pieces to the storage on its own threads.
+ * <br>The pieces wait in a queue so that a slow disk never holds up
+ * piece selection. Once a piece is on disk the PeerController that downloaded
+ * it is told through {@link PeerController#pieceWritten(int, ByteBuffer, boolean)}.
+ * <br>Writes never run on the calling thread, which may be driving the connections.
+ * The queue is bounded by the no of PieceBufferPool buffers, every queued piece
+ * holds one so it can not fill up. Backpressure comes from the BlockScheduler,
+ * which starts no new pieces while queue_size or more pieces wait
+ * (see {@link #isBacklogged()}), throttling the download to what the disk can take.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class DiskWriter {
+
+	private RUBTClient 			rubt;
+	private Logger 				logger;
+	private ThreadPoolExecutor 	workers;
+	private int 				backlog;
+	private long 				written;
+	private long 				total_write_time;
+	
+	DiskWriter(RUBTClient r, int threads, int queue_size)
+	{
+		rubt = r;
+		logger = r.logger;
+		threads = Math.max(1, threads);
+		backlog = Math.max(1, queue_size);
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(r.getPieceBufferPool().getCapacity()), new ThreadFactory(){
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "DiskWriter-"+(count++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+	
+	/**
+	 * Queues a verified piece to be written
+	 * @param index the piece index
+	 * @param piece the piece, from position 0 to its limit
+	 * @param pc the controller to tell once the piece is on disk
+	 */
+	public void write(final int index, final ByteBuffer piece, final PeerController pc)
+	{
+		workers.execute(new Runnable(){
+			public void run()
+			{
+				long start = System.nanoTime();
+				boolean ok = rubt.writeBytes(piece, index);
+				record(System.nanoTime() - start);
+				pc.pieceWritten(index, piece, ok);
+			}
+		});
+	}
+	
+	private synchronized void record(long time)
+	{
+		written++;
+		total_write_time += time;
+	}
+	
+	/**
+	 * Returns the no of pieces waiting to be written
+	 * @return
+	 */
+	public int getQueueDepth()
+	{
+		return workers.getQueue().size();
+	}
+	
+	/**
+	 * Checks if so many pieces are waiting to be written that no new ones should be started
+	 * @return
+	 */
+	public boolean isBacklogged()
+	{
+		return getQueueDepth() >= backlog;
+	}
+	
+	/**
+	 * Returns the no of pieces written so far
+	 * @return
+	 */
+	public synchronized long getWrittenCount()
+	{
+		return written;
+	}
+	
+	/**
+	 * Returns the average time in ms spent writing a piece
+	 * @return
+	 */
+	public synchronized double getAverageWriteTime()
+	{
+		return written == 0 ? 0 : total_write_time / 1e6 / written;
+	}
+	
+	/**
+	 * Writes out the queued pieces and stops the workers
+	 */
+	public void shutdown()
+	{
+		workers.shutdown();
+		try {
+			workers.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for the disk writer to finish");
+		}
+	}
+}
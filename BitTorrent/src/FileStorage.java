@@ -0,0 +1,123 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage backed by a single long lived FileChannel.
+ * <br>Pieces are written with positional writes and single blocks are uploaded
+ * with FileChannel.transferTo so they never enter the heap. A run of adjacent
+ * blocks is read with one positional read into a pooled direct buffer, which
+ * goes back to the pool once the last block of the run has been written out.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class FileStorage implements Storage {
+
+	private Logger 				logger;
+	private int 				piece_length;
+	private RandomAccessFile 	file;
+	private FileChannel 		channel;
+	private int 				run_capacity;
+	private LinkedList<ByteBuffer>	run_buffers;
+	
+	FileStorage(RUBTClient r, File f) throws IOException
+	{
+		logger = r.logger;
+		piece_length = r.torrent_file.piece_length;
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		run_capacity = RUBTClient.UPLOAD_BATCH * RUBTClient.block_length;
+		run_buffers = new LinkedList<ByteBuffer>();
+	}
+	
+	public boolean write(int piece_no, ByteBuffer piece)
+	{
+		try {
+			long position = (long)piece_no * piece_length;
+			while(piece.hasRemaining())
+				position += channel.write(piece, position);
+			return true;
+		} catch (IOException e) {
+			logger.error("Error while writing bytes to file");
+			return false;
+		}
+	}
+	
+	public boolean upload(Peer p, int index, int begin, int length)
+	{
+		return p.piece(index, begin, channel, (long)index * piece_length + begin, length);
+	}
+	
+	public boolean upload(Peer p, int index, List<BlockRequest> run)
+	{
+		//a single block still goes straight from the file to the socket
+		if(run.size() == 1)
+			return upload(p, index, run.get(0).begin, run.get(0).length);
+		
+		int start = run.get(0).begin;
+		BlockRequest last = run.get(run.size()-1);
+		long position = (long)index * piece_length + start;
+		final ByteBuffer data = takeRunBuffer(last.begin + last.length - start);
+		try {
+			//one read for the whole run instead of one transfer per block
+			while(data.hasRemaining())
+				if(channel.read(data, position + data.position()) < 0)
+					throw new IOException("Block at "+(position + data.position())+" is past the end of the file");
+		} catch (IOException e) {
+			releaseRunBuffer(data);
+			logger.error("Could not read blocks of piece "+index+" from "+start+": "+e.getMessage());
+			return false;
+		}
+		
+		//the buffer goes back to the pool once every block of the run is written
+		final AtomicInteger unsent = new AtomicInteger(run.size());
+		Runnable written = new Runnable(){
+			public void run()
+			{
+				if(unsent.decrementAndGet() == 0)
+					releaseRunBuffer(data);
+			}
+		};
+		for(BlockRequest r : run)
+		{
+			data.limit(r.begin - start + r.length);
+			data.position(r.begin - start);
+			if(!p.piece(index, r.begin, data.slice(), written))
+				return false;
+		}
+		return true;
+	}
+	
+	private synchronized ByteBuffer takeRunBuffer(int length)
+	{
+		//runs longer than a batch of standard blocks are rare and not pooled
+		if(length > run_capacity)
+			return ByteBuffer.allocate(length);
+		ByteBuffer b = run_buffers.isEmpty() ? ByteBuffer.allocateDirect(run_capacity) : run_buffers.removeFirst();
+		b.clear();
+		b.limit(length);
+		return b;
+	}
+	
+	private synchronized void releaseRunBuffer(ByteBuffer b)
+	{
+		if(b.capacity() == run_capacity && b.isDirect())
+			run_buffers.add(b);
+	}
+	
+	public void close()
+	{
+		try {
+			channel.force(false);
+			file.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+	}
+}
@@ -22,7 +22,7 @@ import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -76,7 +76,7 @@ public class GUI extends JFrame implements WindowListener{
 		this.rubt = rubt;
 		this.c = c;
 		jbar = new JProgressBar(0,100);
-		downloaded_percent = Math.min(100,((double)rubt.noPiecesCompleted()/(double)rubt.getNoPieces())*100);
+		downloaded_percent = rubt.getProgress();
 		torrent_panel = new TorrentPanel();
 		pane = new JTabbedPane();
 		torrent_info_panel = new InfoPanel();
@@ -236,7 +236,7 @@ public class GUI extends JFrame implements WindowListener{
 			torrent_size.setFont(f);
 			torrent_size.setEditable(false);
 			
-			downloaded_percent = Math.min(100,((double)rubt.noPiecesCompleted()/(double)rubt.getNoPieces())*100);
+			downloaded_percent = rubt.getProgress();
 			jbar.setValue((int)downloaded_percent);
 			jbar.setStringPainted(true);
 			
@@ -289,10 +289,9 @@ public class GUI extends JFrame implements WindowListener{
 			g2.setColor(Color.BLUE);
 			
 			
-			BitSet bs = rubt.getCompletedBitSet();
-			for(int i=0;i<bs.size();i++)
-				if(bs.get(i))
-					g2.fill(new Rectangle2D.Double(P_X + piece_width*i, P_Y,piece_width, P_HEIGHT));
+			ConcurrentBitSet bs = rubt.getCompletedBitSet();
+			for(int i=bs.nextSetBit(0);i>=0;i=bs.nextSetBit(i+1))
+				g2.fill(new Rectangle2D.Double(P_X + piece_width*i, P_Y,piece_width, P_HEIGHT));
 		}
 		
 		public void drawPiece(Graphics g,int piece)
@@ -360,13 +359,13 @@ public class GUI extends JFrame implements WindowListener{
 			//TableColumn tm = table.getColumnModel().getColumn(i);
 		    //  tm.setCellRenderer(new ColorColumnRenderer(this.getBackground(), Color.blue));
 			//}
-		    for(int i=0;i<c.getPeerList().size();i++)
-			addPeer(c.getPeerList().get(i));			
+		    for(Peer p : c.getPeerList())
+			addPeer(p);			
 		}
 		
 		void addPeer(Peer p)
 		{
-		    double percent = calPercent(p.bit_set);
+		    double percent = calPercent(p);
 			addPeer(p.getPeerID(),p.getPeerIP(),percent,getPeerStatus(p),p.up_rate,p.down_rate,p.getUploadedBytes(),p.getDownloadedBytes());
 		}
 		
@@ -391,13 +390,10 @@ public class GUI extends JFrame implements WindowListener{
 			return s;
 		}
 		
-		private double calPercent(BitSet bs)
+		private double calPercent(Peer p)
 		{
 			double percent = 0;
-			double count = 0;
-			for(int i=0;i<rubt.getNoPieces();i++)
-				if(bs.get(i))
-					count++;
+			double count = p.getPieceCount();
 			
 			percent = (count/rubt.getNoPieces())*100;
 			BigDecimal bd = new BigDecimal(Double.toString(percent));
@@ -407,8 +403,20 @@ public class GUI extends JFrame implements WindowListener{
 		
 		void update()
 		{
-			for(int i=0;i<c.getPeerList().size();i++)
-				updatePeer(c.getPeerList().get(i));
+			HashSet<String> ids = new HashSet<String>();
+			for(Peer p : c.getPeerList())
+			{
+				ids.add(p.getPeerID());
+				updatePeer(p);
+			}
+			//peers that are gone are taken off the table
+			ArrayList<Object[]> list = ((MyTableModel)table.getModel()).data;
+			for(int i=list.size()-1;i>=0;i--)
+				if(!ids.contains(list.get(i)[0]))
+				{
+					list.remove(i);
+					((MyTableModel)table.getModel()).fireTableRowsDeleted(i, i);
+				}
 		}
 		
 		void updatePeer(Peer p)
@@ -423,7 +431,7 @@ public class GUI extends JFrame implements WindowListener{
 					String[] peer = (String[])list.get(i);
 					peer[0] = p.getPeerID();
 					peer[1] = p.getPeerIP();
-					peer[2] = calPercent(p.bit_set)+"%";
+					peer[2] = calPercent(p)+"%";
 					peer[3] = getPeerStatus(p);			
 					peer[4] = p.up_rate+" kB/s";
 					peer[5] = p.down_rate+" kB/s";
@@ -520,7 +528,7 @@ public class GUI extends JFrame implements WindowListener{
 		switch(e.getID())
 		{
 			case PIECE_DOWNLOADED:
-				downloaded_percent = Math.min(100,((double)rubt.noPiecesCompleted()/(double)rubt.getNoPieces())*100);
+				downloaded_percent = rubt.getProgress();
 				jbar.setValue((int)downloaded_percent);
 				if(e.getActionCommand()!=null)
 				{
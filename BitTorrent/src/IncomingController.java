@@ -1,5 +1,6 @@
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.io.*;
 
 /**
@@ -43,13 +44,15 @@ public class IncomingController extends Thread{
 		try
 		{
 			//create new server socket
-			ServerSocket server = new ServerSocket(6881);
+			//backed by a channel so that accepted peers can be driven by a PeerEventLoop
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress(6881));
 			
 			while (am_alive)
 			{
 				Thread.yield();
 				//waits for incoming request
-				Socket sock = server.accept();
+				Socket sock = server.accept().socket();
 				InetAddress ip = sock.getInetAddress();
 				//checks if peer is valid
 				
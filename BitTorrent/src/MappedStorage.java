@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Storage that memory maps the output file.
+ * <br>The file is mapped lazily in windows of whole pieces so large files do not
+ * need one huge mapping. Verified pieces are written with a plain memory copy
+ * and uploads are queued as slices of the mapped window.
+ * The pages are forced to the disk every {@link RUBTClient#STORAGE_FORCE} pieces
+ * (0 leaves it to the OS until the storage is closed).
+ * <br>Once the download is complete the client seeds from a read only mapping,
+ * which has no dirty pages to force and which the OS can drop and reload freely.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class MappedStorage implements Storage {
+
+	private Logger 				logger;
+	private int 				piece_length;
+	private long 				file_length;
+	private long 				window_length;
+	private RandomAccessFile 	file;
+	private FileChannel 		channel;
+	private MappedByteBuffer[] 	windows;
+	private int 				force_every;
+	private int 				written;
+	private boolean 			read_only;
+	
+	/**
+	 * @param r
+	 * @param f the output file
+	 * @param window_size the max size of one mapping, rounded down to whole pieces
+	 * @param force_every force the pages to disk every so many pieces, 0 for never
+	 * @throws IOException
+	 */
+	MappedStorage(RUBTClient r, File f, long window_size, int force_every) throws IOException
+	{
+		this(r, f, window_size, force_every, false);
+	}
+	
+	/**
+	 * @param r
+	 * @param f the output file
+	 * @param window_size the max size of one mapping, rounded down to whole pieces
+	 * @param force_every force the pages to disk every so many pieces, 0 for never
+	 * @param read_only map the file for uploads only, pieces can not be written
+	 * @throws IOException
+	 */
+	MappedStorage(RUBTClient r, File f, long window_size, int force_every, boolean read_only) throws IOException
+	{
+		logger = r.logger;
+		piece_length = r.torrent_file.piece_length;
+		file_length = r.torrent_file.file_length;
+		window_length = Math.max(1, window_size / piece_length) * piece_length;
+		this.force_every = force_every;
+		this.read_only = read_only;
+		
+		file = new RandomAccessFile(f, read_only ? "r" : "rw");
+		if(file.length() < file_length && !read_only)
+			file.setLength(file_length);
+		channel = file.getChannel();
+		windows = new MappedByteBuffer[(int)((file_length + window_length - 1) / window_length)];
+	}
+	
+	/**
+	 * Returns a buffer over the given region of the file
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer region(long position, int length) throws IOException
+	{
+		int w = (int)(position / window_length);
+		MappedByteBuffer window;
+		synchronized(this)
+		{
+			window = windows[w];
+			if(window == null)
+			{
+				long start = w * window_length;
+				window = channel.map(read_only ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+						start, Math.min(window_length, file_length - start));
+				windows[w] = window;
+			}
+		}
+		ByteBuffer b = window.duplicate();
+		b.position((int)(position - w * window_length));
+		b.limit(b.position() + length);
+		return b.slice();
+	}
+	
+	public boolean write(int piece_no, ByteBuffer piece)
+	{
+		if(read_only)
+		{
+			logger.error("Piece "+piece_no+" can not be written to a read only storage");
+			return false;
+		}
+		try {
+			region((long)piece_no * piece_length, piece.remaining()).put(piece);
+			
+			boolean force;
+			synchronized(this)
+			{
+				written++;
+				force = force_every > 0 && written % force_every == 0;
+			}
+			if(force)
+				windows[(int)((long)piece_no * piece_length / window_length)].force();
+			return true;
+		} catch (Exception e) {
+			logger.error("Error while writing bytes to mapped file: "+e.getMessage());
+			return false;
+		}
+	}
+	
+	public boolean upload(Peer p, int index, int begin, int length)
+	{
+		try {
+			return p.piece(index, begin, region((long)index * piece_length + begin, length));
+		} catch (IOException e) {
+			logger.error("Could not map block i="+index+" o="+begin+": "+e.getMessage());
+			return false;
+		}
+	}
+	
+	public boolean upload(Peer p, int index, List<BlockRequest> run)
+	{
+		int start = run.get(0).begin;
+		BlockRequest last = run.get(run.size()-1);
+		try {
+			//the run is located in the mapping once and sliced into blocks
+			ByteBuffer data = region((long)index * piece_length + start, last.begin + last.length - start);
+			for(BlockRequest r : run)
+			{
+				data.limit(r.begin - start + r.length);
+				data.position(r.begin - start);
+				if(!p.piece(index, r.begin, data.slice()))
+					return false;
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Could not map blocks of piece "+index+" from "+start+": "+e.getMessage());
+			return false;
+		}
+	}
+	
+	public synchronized void close()
+	{
+		try {
+			for(int i=0;i<windows.length && !read_only;i++)
+				if(windows[i] != null)
+					windows[i].force();
+			windows = new MappedByteBuffer[windows.length];
+			file.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+	}
+}
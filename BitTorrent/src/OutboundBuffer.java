@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the messages sent to one peer.
+ * <br>Messages are encoded in place into a pooled buffer and written out
+ * together, once per event loop turn (or controller iteration) instead of one
+ * write per message. The event loop writes a peer out early once
+ * {@link #FLUSH_THRESHOLD} bytes are waiting while it dispatches a burst of messages.
+ * Blocks sent with transferTo or straight from a mapped file are queued as
+ * regions between the encoded bytes.
+ *
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class OutboundBuffer {
+
+	/**
+	 * Size of the pooled encode buffers
+	 */
+	public final static int 	CAPACITY = 16 * 1024;
+	/**
+	 * No of bytes waiting after which the buffer should be flushed right away
+	 */
+	public final static int 	FLUSH_THRESHOLD = 8 * 1024;
+
+	//totals over every peer of the process, the buffers of closed peers included
+	private final static AtomicLong 	TOTAL_MESSAGES = new AtomicLong();
+	private final static AtomicLong 	TOTAL_FLUSHES = new AtomicLong();
+	private final static AtomicLong 	TOTAL_WRITES = new AtomicLong();
+	private final static AtomicLong 	TOTAL_BYTES = new AtomicLong();
+
+	private ByteBuffer 				current;
+	private LinkedList<Object> 		sealed;
+	private LinkedList<ByteBuffer> 	spare;
+	private int 					pending_bytes;
+	private int 					pending_messages;
+
+	private long 					messages;
+	private long 					flushes;
+	private long 					messages_flushed;
+	private long 					writes;
+	private long 					bytes_written;
+	private boolean 				throttled;
+
+	OutboundBuffer()
+	{
+		current = ByteBuffer.allocateDirect(CAPACITY);
+		sealed = new LinkedList<Object>();
+		spare = new LinkedList<ByteBuffer>();
+	}
+
+	/**
+	 * Returns the buffer to encode the next message into, with room for size bytes.
+	 * Call {@link #commit(int)} once the message is in.
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer allocate(int size)
+	{
+		if(current.remaining() < size)
+		{
+			seal();
+			if(size > CAPACITY)
+				current = ByteBuffer.allocate(size);
+		}
+		return current;
+	}
+
+	/**
+	 * Counts a message that was just encoded
+	 * @param size
+	 */
+	public void commit(int size)
+	{
+		messages++;
+		pending_messages++;
+		pending_bytes += size;
+	}
+
+	/**
+	 * Queues a block to be transferred from a file behind the messages encoded so far
+	 * @param file
+	 * @param position
+	 * @param length
+	 */
+	public void add(FileChannel file, long position, int length)
+	{
+		seal();
+		sealed.add(new FileRegion(file, position, length));
+		pending_bytes += length;
+	}
+
+	/**
+	 * Queues a buffer to be written as is behind the messages encoded so far.
+	 * The buffer is not copied so it must not change until it has been written.
+	 * @param data
+	 */
+	public void add(ByteBuffer data)
+	{
+		add(data, null);
+	}
+	
+	/**
+	 * Queues a buffer to be written as is, such as a slice of a pooled buffer
+	 * @param data
+	 * @param written run on the flushing thread once the buffer has been written
+	 * out, never if the peer is closed first. Null for nothing.
+	 */
+	public void add(ByteBuffer data, Runnable written)
+	{
+		seal();
+		sealed.add(new BufferRegion(data, written));
+		pending_bytes += data.remaining();
+	}
+	
+	/**
+	 * Checks if there is nothing left to write
+	 * @return
+	 */
+	public boolean isEmpty()
+	{
+		return current.position() == 0 && sealed.isEmpty();
+	}
+
+	/**
+	 * Returns the no of bytes waiting to be written
+	 * @return
+	 */
+	public int getPendingBytes()
+	{
+		return pending_bytes;
+	}
+
+	/**
+	 * Checks if enough bytes are waiting that they should be written now
+	 * @return
+	 */
+	public boolean isFull()
+	{
+		return pending_bytes >= FLUSH_THRESHOLD;
+	}
+
+	/**
+	 * Writes as much as the channel will take
+	 * @param channel
+	 * @return true if everything was written
+	 * @throws IOException
+	 */
+	public boolean flush(SocketChannel channel) throws IOException
+	{
+		return flush(channel, null);
+	}
+
+	/**
+	 * Writes as much as the channel and the bucket will take
+	 * @param channel
+	 * @param bucket the upload limit, null for none
+	 * @return true if everything was written
+	 * @throws IOException
+	 */
+	public boolean flush(SocketChannel channel, TokenBucket bucket) throws IOException
+	{
+		seal();
+		throttled = false;
+		if(pending_messages > 0)
+		{
+			flushes++;
+			messages_flushed += pending_messages;
+			TOTAL_FLUSHES.incrementAndGet();
+			TOTAL_MESSAGES.addAndGet(pending_messages);
+			pending_messages = 0;
+		}
+
+		while(!sealed.isEmpty())
+		{
+			Object head = sealed.getFirst();
+			int quota = Integer.MAX_VALUE;
+			if(bucket != null)
+			{
+				quota = bucket.take(remaining(head));
+				if(quota == 0)
+				{
+					throttled = true;
+					return false;
+				}
+			}
+			long n;
+			boolean done;
+			if(head instanceof FileRegion)
+			{
+				FileRegion region = (FileRegion)head;
+				n = region.transferTo(channel, quota);
+				done = region.remaining == 0;
+			}
+			else
+			{
+				ByteBuffer b = head instanceof BufferRegion ? ((BufferRegion)head).data : (ByteBuffer)head;
+				int limit = b.limit();
+				if(quota < b.remaining())
+					b.limit(b.position() + quota);
+				n = channel.write(b);
+				b.limit(limit);
+				done = !b.hasRemaining();
+			}
+			if(bucket != null)
+				bucket.refund(quota - (int)n);
+			writes++;
+			bytes_written += n;
+			TOTAL_WRITES.incrementAndGet();
+			TOTAL_BYTES.addAndGet(n);
+			pending_bytes -= n;
+			if(!done)
+			{
+				//the socket took all we were allowed to send, the rest waits for tokens
+				throttled = bucket != null && n == quota;
+				return false;
+			}
+
+			sealed.removeFirst();
+			if(head instanceof ByteBuffer && ((ByteBuffer)head).isDirect() && spare.size() < 2)
+			{
+				((ByteBuffer)head).clear();
+				spare.add((ByteBuffer)head);
+			}
+			else if(head instanceof BufferRegion && ((BufferRegion)head).written != null)
+				((BufferRegion)head).written.run();
+		}
+		pending_bytes = 0;
+		return true;
+	}
+
+	/**
+	 * Checks if the last flush stopped because the upload limit ran out rather than the socket
+	 * @return
+	 */
+	public boolean isThrottled()
+	{
+		return throttled;
+	}
+
+	private static int remaining(Object region)
+	{
+		if(region instanceof FileRegion)
+			return (int)((FileRegion)region).remaining;
+		if(region instanceof BufferRegion)
+			return ((BufferRegion)region).data.remaining();
+		return ((ByteBuffer)region).remaining();
+	}
+
+	private void seal()
+	{
+		if(current.position() == 0)
+			return;
+		current.flip();
+		sealed.add(current);
+		current = spare.isEmpty() ? ByteBuffer.allocateDirect(CAPACITY) : spare.removeFirst();
+	}
+
+	/**
+	 * Returns the total no of messages encoded
+	 * @return
+	 */
+	public long getMessageCount()
+	{
+		return messages;
+	}
+
+	/**
+	 * Returns the average no of messages written out per flush
+	 * @return
+	 */
+	public double getMessagesPerFlush()
+	{
+		return flushes == 0 ? 0 : (double)messages_flushed / flushes;
+	}
+
+	/**
+	 * Returns the average no of bytes written per write/transferTo call
+	 * @return
+	 */
+	public double getBytesPerWrite()
+	{
+		return writes == 0 ? 0 : (double)bytes_written / writes;
+	}
+
+	/**
+	 * Returns the average no of messages written out per flush over every peer
+	 * @return
+	 */
+	public static double getTotalMessagesPerFlush()
+	{
+		long n = TOTAL_FLUSHES.get();
+		return n == 0 ? 0 : (double)TOTAL_MESSAGES.get() / n;
+	}
+
+	/**
+	 * Returns the average no of bytes written per write/transferTo call over every peer
+	 * @return
+	 */
+	public static double getTotalBytesPerWrite()
+	{
+		long n = TOTAL_WRITES.get();
+		return n == 0 ? 0 : (double)TOTAL_BYTES.get() / n;
+	}
+
+	/**
+	 * A region of a file waiting to be transferred to the peer
+	 */
+	private static class FileRegion
+	{
+		private FileChannel file;
+		private long 		position;
+		private long 		remaining;
+
+		FileRegion(FileChannel file, long position, long length)
+		{
+			this.file = file;
+			this.position = position;
+			remaining = length;
+		}
+
+		/**
+		 * Transfers as much of the region as the socket will take, at most max bytes
+		 * @param target
+		 * @param max
+		 * @return the no of bytes transferred
+		 * @throws IOException
+		 */
+		long transferTo(SocketChannel target, int max) throws IOException
+		{
+			long n = file.transferTo(position, Math.min(remaining, max), target);
+			if(n == 0 && position >= file.size())
+				throw new IOException("Block at "+position+" is past the end of the file");
+			position += n;
+			remaining -= n;
+			return n;
+		}
+	}
+
+	/**
+	 * A buffer owned by someone else, such as a slice of a mapped file,
+	 * waiting to be written to the peer
+	 */
+	private static class BufferRegion
+	{
+		private ByteBuffer data;
+		private Runnable 	written;
+		
+		BufferRegion(ByteBuffer data, Runnable written)
+		{
+			this.data = data;
+			this.written = written;
+		}
+	}
+}
@@ -0,0 +1,237 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A piece that is being downloaded, possibly by several peers at once.
+ * <br>Keeps the buffer the piece is assembled in and the state of each of
+ * its blocks. Only used by the BlockScheduler, under its lock.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PartialPiece {
+
+	final static byte 	FREE = 0;
+	final static byte 	REQUESTED = 1;
+	final static byte 	RECEIVED = 2;
+	
+	/**
+	 * The piece index
+	 */
+	public final int 		index;
+	/**
+	 * The length of the piece
+	 */
+	public final int 		length;
+	/**
+	 * The buffer the piece is assembled in, limited to its length
+	 */
+	public final ByteBuffer buf;
+	/**
+	 * The running hash of the piece, null unless hashing incrementally
+	 */
+	public final PieceHasher hasher;
+	
+	private byte[] 			state;
+	//the controllers each block is requested from, more than one in endgame
+	private ArrayList<ArrayList<PeerController>> requesters;
+	//the controller each received block came from
+	private PeerController[] sources;
+	private int 			requested;
+	private int 			received;
+	//first block that may still be free
+	private int 			next_free;
+	
+	PartialPiece(int index, int length, ByteBuffer buf, PieceHasher hasher)
+	{
+		this.index = index;
+		this.length = length;
+		this.buf = buf;
+		this.hasher = hasher;
+		state = new byte[(length + RUBTClient.block_length - 1) / RUBTClient.block_length];
+		sources = new PeerController[state.length];
+		requesters = new ArrayList<ArrayList<PeerController>>(state.length);
+		for(int i=0;i<state.length;i++)
+			requesters.add(new ArrayList<PeerController>(1));
+	}
+	
+	/**
+	 * Marks the first free block as requested from a controller
+	 * @param pc
+	 * @return the request for the block, or null if none is free
+	 */
+	BlockRequest requestFree(PeerController pc)
+	{
+		while(next_free < state.length && state[next_free] != FREE)
+			next_free++;
+		if(next_free == state.length)
+			return null;
+		state[next_free] = REQUESTED;
+		requested++;
+		requesters.get(next_free).add(pc);
+		return block(next_free);
+	}
+	
+	/**
+	 * Requests a block that is already requested from someone else a second time,
+	 * used in endgame
+	 * @param pc
+	 * @return the request for the block, or null if every block still missing is already requested from pc
+	 */
+	BlockRequest requestDuplicate(PeerController pc)
+	{
+		for(int b=0;b<state.length;b++)
+		{
+			if(state[b] == REQUESTED && !requesters.get(b).contains(pc))
+			{
+				requesters.get(b).add(pc);
+				return block(b);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Drops a controller's request for a block, the block is free again
+	 * once nobody is asked for it
+	 * @param begin
+	 * @param pc
+	 */
+	void abandon(int begin, PeerController pc)
+	{
+		int b = begin / RUBTClient.block_length;
+		if(state[b] != REQUESTED)
+			return;
+		ArrayList<PeerController> from = requesters.get(b);
+		from.remove(pc);
+		if(!from.isEmpty())
+			return;
+		state[b] = FREE;
+		requested--;
+		next_free = Math.min(next_free, b);
+	}
+	
+	/**
+	 * Puts a block in the buffer
+	 * @param begin
+	 * @param block
+	 * @param pc the controller the block came from
+	 * @return the other controllers the block was requested from, that should cancel it,
+	 * or null if the block was not expected or already received
+	 */
+	ArrayList<PeerController> receive(int begin, ByteBuffer block, PeerController pc)
+	{
+		if(begin % RUBTClient.block_length != 0 || begin >= length)
+			return null;
+		int b = begin / RUBTClient.block_length;
+		int expected = Math.min(RUBTClient.block_length, length - begin);
+		if(state[b] == RECEIVED || block.remaining() != expected)
+			return null;
+		if(state[b] == REQUESTED)
+			requested--;
+		state[b] = RECEIVED;
+		received++;
+		sources[b] = pc;
+		
+		buf.position(begin);
+		buf.put(block);
+		
+		ArrayList<PeerController> others = requesters.get(b);
+		others.remove(pc);
+		requesters.set(b, new ArrayList<PeerController>(0));
+		return others;
+	}
+	
+	/**
+	 * Feeds a received block to the running hash. Called after the BlockScheduler
+	 * lock is released, the blocks of the piece may be fed in any order.
+	 * @param begin
+	 * @param length
+	 * @return true if this was the last block fed in, the piece can be verified
+	 */
+	boolean hashBlock(int begin, int length)
+	{
+		return hasher.blockReceived(buf, begin, length) == this.length;
+	}
+	
+	/**
+	 * Returns the no of blocks in the piece
+	 * @return
+	 */
+	int getBlockCount()
+	{
+		return state.length;
+	}
+	
+	/**
+	 * Returns the controller block b was received from
+	 * @param b
+	 * @return
+	 */
+	PeerController getSource(int b)
+	{
+		return sources[b];
+	}
+	
+	/**
+	 * Returns the offset of block b in the piece
+	 * @param b
+	 * @return
+	 */
+	int getBegin(int b)
+	{
+		return b * RUBTClient.block_length;
+	}
+	
+	/**
+	 * Returns the length of block b
+	 * @param b
+	 * @return
+	 */
+	int getLength(int b)
+	{
+		return Math.min(RUBTClient.block_length, length - b * RUBTClient.block_length);
+	}
+	
+	/**
+	 * Checks if a block has been received
+	 * @param begin
+	 * @return
+	 */
+	boolean isReceived(int begin)
+	{
+		return begin >= 0 && begin < length && state[begin / RUBTClient.block_length] == RECEIVED;
+	}
+	
+	private BlockRequest block(int b)
+	{
+		return new BlockRequest(index, getBegin(b), getLength(b));
+	}
+	
+	/**
+	 * Checks if there is a block nobody has asked for yet
+	 * @return
+	 */
+	boolean hasFree()
+	{
+		return requested + received < state.length;
+	}
+	
+	/**
+	 * Checks if no block is requested or received, so the piece can be dropped
+	 * @return
+	 */
+	boolean isIdle()
+	{
+		return requested == 0 && received == 0;
+	}
+	
+	/**
+	 * Checks if every block has been received
+	 * @return
+	 */
+	boolean isComplete()
+	{
+		return received == state.length;
+	}
+}
@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.BitSet;
 /**
  * Peer object.
@@ -18,6 +21,18 @@ public class Peer implements Comparable<Peer>{
 	private String 					_ip="";
 	private int 					_port;
 	private Socket 					sock;
+	private SocketChannel 			channel;
+	private PeerEventLoop 			event_loop;
+	private SelectionKey 			loop_key;
+	//set while the peer waits in its event loop's ready set to be flushed
+	private boolean 				flush_queued;
+	private OutboundBuffer 			outbound;
+	//the messages being written out on a blocking channel, only touched while holding write_lock
+	private OutboundBuffer 			writing;
+	private Object 					write_lock;
+	private volatile int 			writing_bytes;
+	private TokenBucket 			up_bucket;
+	private TokenBucket 			down_bucket;
 	private DataOutputStream 		client_to_peer;
 	private DataInputStream 		peer_to_client;
 	private boolean 				am_choking;
@@ -71,6 +86,10 @@ public class Peer implements Comparable<Peer>{
 	 * Key for port message
 	 */
 	final static int KEY_PORT = 		9;
+	/**
+	 * Largest message accepted from a peer
+	 */
+	final static int MAX_MESSAGE = 		1 << 20;
 	
 	private Logger logger;
 	
@@ -91,8 +110,15 @@ public class Peer implements Comparable<Peer>{
 	public double avg_up_rate		= 0;
 	public double avg_down_rate		= 0;
 
+	/**
+	 * Partially read frames when driven by a PeerEventLoop
+	 */
+	ByteBuffer inbound;
+	
 	BitSet bit_set;
-	//corrupted bit set represents pieces that the client tried to download but did pass verification
+	//no of bits set in bit_set, kept so progress needs no scan
+	private int piece_count;
+	//pieces this peer sent blocks of that failed verification, it is asked for them last
 	BitSet corrupted_bit_set;
 	
 	public Peer(Logger log,int no_pieces, String cid, String pid, String ip, int port, byte[] infohash)
@@ -106,6 +132,13 @@ public class Peer implements Comparable<Peer>{
 			bit_set = new BitSet(no_pieces);
 			corrupted_bit_set = new BitSet(no_pieces);
 			sock = null;
+			channel = null;
+			event_loop = null;
+			outbound = new OutboundBuffer();
+			writing = new OutboundBuffer();
+			write_lock = new Object();
+			up_bucket = new TokenBucket(0, null);
+			down_bucket = new TokenBucket(0, null);
 			client_to_peer = null;
 			peer_to_client = null;
 			handshake_performed = false;
@@ -170,6 +203,7 @@ public class Peer implements Comparable<Peer>{
 		try
 		{
 			sock = s;
+			channel = s.getChannel();
 			client_to_peer = new DataOutputStream(sock.getOutputStream());
 			peer_to_client = new DataInputStream(sock.getInputStream());
 			
@@ -180,6 +214,206 @@ public class Peer implements Comparable<Peer>{
 		}
 	}
 	
+	/**
+	 * Returns the channel backing the peer socket
+	 * @return SocketChannel
+	 */
+	public SocketChannel getPeerChannel()
+	{
+		return channel;
+	}
+	
+	/**
+	 * Hands this peer over to an event loop. The channel must already be
+	 * registered in non-blocking mode, from now on messages are queued and
+	 * written out by the loop instead of the socket streams.
+	 * @param loop
+	 * @param key the key of the channel with the loop's selector
+	 */
+	synchronized void register(PeerEventLoop loop, SelectionKey key)
+	{
+		inbound = ByteBuffer.allocate(13 + RUBTClient.block_length);
+		event_loop = loop;
+		loop_key = key;
+		//messages queued before the hand over are flushed by the loop
+		flush_queued = true;
+		loop.wakeup(this);
+	}
+	
+	/**
+	 * Returns the key of the channel with the selector of the event loop driving this peer
+	 * @return
+	 */
+	SelectionKey getLoopKey()
+	{
+		return loop_key;
+	}
+	
+	/**
+	 * Sets the buckets that limit the bytes sent to and received from this peer
+	 * @param up
+	 * @param down
+	 */
+	void setBuckets(TokenBucket up, TokenBucket down)
+	{
+		up_bucket = up;
+		down_bucket = down;
+	}
+	
+	/**
+	 * Returns the bucket limiting the bytes sent to this peer
+	 * @return
+	 */
+	public TokenBucket getUploadBucket()
+	{
+		return up_bucket;
+	}
+	
+	/**
+	 * Returns the bucket limiting the bytes received from this peer
+	 * @return
+	 */
+	public TokenBucket getDownloadBucket()
+	{
+		return down_bucket;
+	}
+	
+	/**
+	 * Checks if enough bytes are queued for this peer that they should be written now
+	 * @return
+	 */
+	synchronized boolean isOutboundFull()
+	{
+		return outbound.isFull();
+	}
+	
+	/**
+	 * Returns the no of messages queued for this peer so far
+	 * @return
+	 */
+	synchronized long getMessageCount()
+	{
+		return outbound.getMessageCount() + writing.getMessageCount();
+	}
+	
+	/**
+	 * Writes as much of the queued messages as the channel and the upload limit will take.
+	 * Used by the event loop, the channel is non-blocking.
+	 * @return true if everything was written
+	 * @throws IOException
+	 */
+	synchronized boolean flushOutbound() throws IOException
+	{
+		flush_queued = false;
+		return outbound.flush(channel, up_bucket);
+	}
+	
+	/**
+	 * Checks if the last write stopped because the upload limit ran out
+	 * @return
+	 */
+	synchronized boolean isUploadThrottled()
+	{
+		return outbound.isThrottled();
+	}
+	
+	/**
+	 * Writes out everything queued on the blocking channel, waiting for the upload limit.
+	 * <br>The queued messages are swapped out under the Peer lock and written while only
+	 * holding the write lock, so other threads can keep sending while the socket or the
+	 * upload limit holds the writer up.
+	 * @throws IOException
+	 */
+	private void drain() throws IOException
+	{
+		synchronized(write_lock)
+		{
+			while(true)
+			{
+				synchronized(this)
+				{
+					if(outbound.isEmpty())
+						return;
+					OutboundBuffer full = outbound;
+					outbound = writing;
+					writing = full;
+					writing_bytes = writing.getPendingBytes();
+				}
+				try {
+					while(!writing.flush(channel, up_bucket))
+						if(writing.isThrottled())
+							up_bucket.await();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("Interrupted while waiting for the upload limit");
+				} finally {
+					writing_bytes = 0;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes out all the coalesced messages.
+	 * Called by the owning PeerController once per iteration, does nothing
+	 * for peers driven by an event loop since the loop flushes them once they queue messages.
+	 * Must not be called while holding the Peer lock.
+	 * @return boolean
+	 */
+	public boolean flush()
+	{
+		if(event_loop!=null)
+			return true;
+		try
+		{
+			drain();
+			return true;
+		} catch (IOException ioe)
+		{
+			close();
+			logger.error(ioe.getMessage());
+			logger.error("COULD NOT FLUSH MESSAGES TO PEER "+peer_id);
+			return false;
+		}
+	}
+	
+	/**
+	 * Sends a constant message to the peer
+	 * @param msg
+	 * @throws IOException
+	 */
+	private void send(byte[] msg) throws IOException
+	{
+		outbound.allocate(msg.length).put(msg);
+		sent(msg.length);
+	}
+	
+	/**
+	 * Called once a message has been encoded into the outbound buffer.
+	 * Nothing is written here, the calling thread may hold other locks. The peer is put
+	 * in its event loop's ready set once until the loop flushes it, otherwise its
+	 * owner flushes on its next iteration.
+	 * @param size
+	 * @throws IOException
+	 */
+	private void sent(int size) throws IOException
+	{
+		outbound.commit(size);
+		if(event_loop!=null && !flush_queued)
+		{
+			flush_queued = true;
+			event_loop.wakeup(this);
+		}
+	}
+	
+	/**
+	 * Returns the no of bytes queued for this peer that have not been written yet
+	 * @return
+	 */
+	synchronized int getQueuedBytes()
+	{
+		return outbound.getPendingBytes() + writing_bytes;
+	}
+	
 	/**
 	 * Checks if we are choking this peer
 	 * @return
@@ -324,7 +558,8 @@ public class Peer implements Comparable<Peer>{
 			for (i=i; i<pstr.length() + 49; i++)
 				msg[i] = (byte) client_id.charAt(i - offset);
 			
-			sock = new Socket(_ip, _port);
+			channel = SocketChannel.open(new InetSocketAddress(_ip, _port));
+			sock = channel.socket();
 			
 			//peer_to_client = new DataInputStream(sock.getInputStream());
 			client_to_peer = new DataOutputStream(sock.getOutputStream());
@@ -409,8 +644,7 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			client_to_peer.write(keep_alive);
-			client_to_peer.flush();
+			send(keep_alive);
 			logger.debug("KeepAlive message sent to peer "+peer_id);
 			return true;
 		} catch (IOException ioe)
@@ -430,8 +664,7 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			client_to_peer.write(choke);
-			client_to_peer.flush();
+			send(choke);
 			logger.debug("Choke message sent to peer "+this.getPeerID());
 			
 			am_choking = true;
@@ -457,8 +690,7 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			client_to_peer.write(unchoke);
-			client_to_peer.flush();
+			send(unchoke);
 			logger.debug("Unchoke message sent to peer "+this.getPeerID());
 			
 			am_choking = false;
@@ -486,8 +718,7 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			client_to_peer.write(interested, 0, interested.length);
-			client_to_peer.flush();
+			send(interested);
 			logger.debug("Interested message sent");
 			
 			am_interested = true;
@@ -515,8 +746,7 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			client_to_peer.write(uninterested);
-			client_to_peer.flush();
+			send(uninterested);
 			logger.debug("Uninterested message sent");
 			
 			am_interested = false;
@@ -546,11 +776,11 @@ public class Peer implements Comparable<Peer>{
 		try
 		{
 			if(!sock.isClosed()){
-				ByteBuffer have_buffer = ByteBuffer.allocate(9);
-				have_buffer.put(new byte[] {0,0,0,5,4});
-				have_buffer.putInt(piece_index);
-				client_to_peer.write(have_buffer.array());
-				client_to_peer.flush();
+				ByteBuffer out = outbound.allocate(9);
+				out.putInt(5);
+				out.put((byte) KEY_HAVE);
+				out.putInt(piece_index);
+				sent(9);
 				logger.debug("Have message for piece "+piece_index+" sent to peer "+peer_id);
 				return true;
 			}
@@ -583,12 +813,11 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			ByteBuffer bitfield_buffer = ByteBuffer.allocate(5 + bitfield.length);
-			bitfield_buffer.putInt(1 + bitfield.length);
-			bitfield_buffer.put((byte) 5);
-			bitfield_buffer.put(bitfield);
-			client_to_peer.write(bitfield_buffer.array());
-			client_to_peer.flush();
+			ByteBuffer out = outbound.allocate(5 + bitfield.length);
+			out.putInt(1 + bitfield.length);
+			out.put((byte) KEY_BITFIELD);
+			out.put(bitfield);
+			sent(5 + bitfield.length);
 			logger.debug("Bitfield message sent");
 			return true;
 		} catch (IOException ioe)
@@ -627,12 +856,11 @@ public class Peer implements Comparable<Peer>{
 			        }
 			}
 	        
-	        ByteBuffer bitfield_buffer = ByteBuffer.allocate(5 + bitfield_bytes.length);
-			bitfield_buffer.putInt(1 + bitfield_bytes.length);
-			bitfield_buffer.put((byte) 5);
-			bitfield_buffer.put(bitfield_bytes);
-			client_to_peer.write(bitfield_buffer.array());
-			client_to_peer.flush();
+	        ByteBuffer out = outbound.allocate(5 + bitfield_bytes.length);
+			out.putInt(1 + bitfield_bytes.length);
+			out.put((byte) KEY_BITFIELD);
+			out.put(bitfield_bytes);
+			sent(5 + bitfield_bytes.length);
 			logger.debug("Bitfield message sent");
 			return true;
 		} catch (Exception ioe)
@@ -656,13 +884,13 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			ByteBuffer request_buffer = ByteBuffer.allocate(17);
-			request_buffer.put(new byte[] {0,0,0,13,6});
-			request_buffer.putInt(index);
-			request_buffer.putInt(begin);
-			request_buffer.putInt(length);
-			client_to_peer.write(request_buffer.array());
-			client_to_peer.flush();
+			ByteBuffer out = outbound.allocate(17);
+			out.putInt(13);
+			out.put((byte) KEY_REQUEST);
+			out.putInt(index);
+			out.putInt(begin);
+			out.putInt(length);
+			sent(17);
 			logger.debug("Request message sent");
 			return true;
 		} catch (IOException ioe)
@@ -690,14 +918,13 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			ByteBuffer piece_buffer = ByteBuffer.allocate(13 + block.length);
-			piece_buffer.putInt(9 + block.length);
-			piece_buffer.put((byte) 7);
-			piece_buffer.putInt(index);
-			piece_buffer.putInt(begin);
-			piece_buffer.put(block);
-			client_to_peer.write(piece_buffer.array());
-			client_to_peer.flush();
+			ByteBuffer out = outbound.allocate(13 + block.length);
+			out.putInt(9 + block.length);
+			out.put((byte) KEY_PIECE);
+			out.putInt(index);
+			out.putInt(begin);
+			out.put(block);
+			sent(13 + block.length);
 			logger.debug("Piece message sent");
 			return true;
 		} catch (IOException ioe)
@@ -714,6 +941,81 @@ public class Peer implements Comparable<Peer>{
 		}
 	}
 	
+	/**
+	 * Sends this peer the piece message without copying the block into the heap.
+	 * <br>Only the 13 byte header is built here, the block itself is queued behind it and
+	 * transferred from the file channel to the socket channel with FileChannel.transferTo.
+	 * @param index piece index
+	 * @param begin
+	 * @param file the channel to read the block from
+	 * @param position position of the block in the file
+	 * @param length
+	 * @return boolean
+	 */
+	public synchronized boolean piece(int index, int begin, FileChannel file, long position, int length)
+	{
+		try
+		{
+			ByteBuffer out = outbound.allocate(13);
+			out.putInt(9 + length);
+			out.put((byte) KEY_PIECE);
+			out.putInt(index);
+			out.putInt(begin);
+			outbound.add(file, position, length);
+			sent(13);
+			logger.debug("Piece message sent");
+			return true;
+		} catch (Exception ioe)
+		{
+			logger.error(ioe.getMessage());
+			logger.error("COULD NOT SEND PIECE MESSAGE TO PEER!");
+			return false;
+		}
+	}
+	
+	/**
+	 * Sends this peer the piece message for a block that is already in a buffer,
+	 * such as a slice of a mapped file. The block is written as is, without copying it.
+	 * @param index piece index
+	 * @param begin
+	 * @param block the block, from its position to its limit
+	 * @return boolean
+	 */
+	public boolean piece(int index, int begin, ByteBuffer block)
+	{
+		return piece(index, begin, block, null);
+	}
+	
+	/**
+	 * Sends this peer the piece message for a block in a pooled buffer
+	 * @param index piece index
+	 * @param begin
+	 * @param block the block, from its position to its limit
+	 * @param written run once the block has been written out, see {@link OutboundBuffer#add(ByteBuffer, Runnable)}
+	 * @return boolean
+	 */
+	public synchronized boolean piece(int index, int begin, ByteBuffer block, Runnable written)
+	{
+		try
+		{
+			int length = block.remaining();
+			ByteBuffer out = outbound.allocate(13);
+			out.putInt(9 + length);
+			out.put((byte) KEY_PIECE);
+			out.putInt(index);
+			out.putInt(begin);
+			outbound.add(block, written);
+			sent(13);
+			logger.debug("Piece message sent");
+			return true;
+		} catch (Exception ioe)
+		{
+			logger.error(ioe.getMessage());
+			logger.error("COULD NOT SEND PIECE MESSAGE TO PEER!");
+			return false;
+		}
+	}
+	
 	/**
 	 * Sends this peer the cancel message
 	 * @param index
@@ -725,13 +1027,13 @@ public class Peer implements Comparable<Peer>{
 	{
 		try
 		{
-			ByteBuffer cancel_buffer = ByteBuffer.allocate(17);
-			cancel_buffer.put(new byte[] {0,0,0,13,8});
-			cancel_buffer.putInt(index);
-			cancel_buffer.putInt(begin);
-			cancel_buffer.putInt(length);
-			client_to_peer.write(cancel_buffer.array());
-			client_to_peer.flush();
+			ByteBuffer out = outbound.allocate(17);
+			out.putInt(13);
+			out.put((byte) KEY_CANCEL);
+			out.putInt(index);
+			out.putInt(begin);
+			out.putInt(length);
+			sent(17);
 			logger.debug("Cancel message sent");
 			return true;
 		} catch (IOException ioe)
@@ -861,6 +1163,39 @@ public class Peer implements Comparable<Peer>{
 	{
 		return bit_set.get(i);
 	}
+	
+	/**
+	 * Sets the pieces this peer has, from its bitfield message
+	 * @param bs
+	 */
+	public synchronized void setBitSet(BitSet bs)
+	{
+		bit_set = bs;
+		piece_count = bs.cardinality();
+	}
+	
+	/**
+	 * Marks a piece this peer announced with a have message
+	 * @param i
+	 * @return false if the peer already had it
+	 */
+	public synchronized boolean addPiece(int i)
+	{
+		if(bit_set.get(i))
+			return false;
+		bit_set.set(i);
+		piece_count++;
+		return true;
+	}
+	
+	/**
+	 * Returns the no of pieces this peer has
+	 * @return
+	 */
+	public synchronized int getPieceCount()
+	{
+		return piece_count;
+	}
 
 
 	@Override
@@ -868,5 +1203,4 @@ public class Peer implements Comparable<Peer>{
 		// TODO Auto-generated method stub
 		return 0;
 	}
-	
 }
@@ -1,9 +1,10 @@
 import java.awt.event.ActionEvent;
 import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.util.BitSet;
-import java.util.Calendar;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -18,19 +19,16 @@ import java.nio.channels.*;
 
 public class PeerController extends Thread{
 	
-	private int piece_to_download;
-	private int blocks_per_piece;
-	private int total_blocks;
-	private int blocks_for_last_piece;
-	private int offset = 0;
-	private int downloaded_so_far = 0;
+	private RequestPipeline pipeline;
 	private Object lock;
+	//orders dying against the have and bitfield accounting, not the Thread monitor that join() waits on
+	private Object alive_lock;
 	private PriorityQueue<Integer> piece_queue;
 	private boolean keep_alive_sent = false;
 	private final int block_length = RUBTClient.block_length;
-	private Calendar start;
-	private Calendar down_c;
-	private Calendar up_c;
+	private RateMeter down_meter;
+	private RateMeter up_meter;
+	private UploadQueue uploads;
 	
 	/**
 	 * The peer object assigned to this controller
@@ -43,11 +41,12 @@ public class PeerController extends Thread{
 	
 	private Logger logger;	
 	
-	private ByteBuffer buf = ByteBuffer.allocate(0);
+	private long next_retry = 0;
+	private int wanted_version = -1;
 	
-	private Calendar c = Calendar.getInstance();
+	private long last_message = System.currentTimeMillis();
 	
-	private boolean am_alive=true;
+	private volatile boolean am_alive=true;
 	
 	private RUBTClient rubt;
 	private Controller controller;
@@ -67,15 +66,16 @@ public class PeerController extends Thread{
 		rubt = r;
 		controller = c;
 		peer = p;
-		piece_to_download = -1;
 		torrent = torrent_file;
 		logger = rubt.logger;
 		lock = new Object();
+		alive_lock = new Object();
 		piece_queue = new PriorityQueue<Integer>();
-		blocks_per_piece = torrent.piece_length / block_length;
-		total_blocks = (int) Math.ceil((double) torrent.file_length / block_length);
-		blocks_for_last_piece = total_blocks - ((rubt.getNoPieces() - 1)*blocks_per_piece);
-		start = Calendar.getInstance();
+		pipeline = new RequestPipeline(this, r.getBlockScheduler(), RUBTClient.PIPELINE_DEPTH);
+		down_meter = new RateMeter(RUBTClient.RATE_WINDOW);
+		up_meter = new RateMeter(RUBTClient.RATE_WINDOW);
+		uploads = new UploadQueue(RUBTClient.UPLOAD_QUEUE);
+		peer.setBuckets(r.getUploadBucket().newChild(), r.getDownloadBucket().newChild());
 	}
 	
 	
@@ -85,317 +85,527 @@ public class PeerController extends Thread{
 	 * <li>Performs handshake
 	 * <li>Sends interested message
 	 * <li>Waits for unchoke
-	 * <li>Starts downloading the piece assigned to it by RUBTClient
+	 * <li>Starts downloading the blocks handed out by the BlockScheduler
 	 * <li>File downloaded!
 	 * </ul>
+	 * Only used by the thread transport, with the nio transport a PeerEventLoop
+	 * calls {@link #handleMessage(int, ByteBuffer)} and {@link #tick()} instead
+	 * and the virtual transport uses {@link #runBlocking()}.
 	 * @see java.lang.Thread#run()
 	 */
 	public void run() {
 		try
 		{
-			up_c = Calendar.getInstance();
-			down_c = Calendar.getInstance();
 			logger.debug("PeerController "+this.id+" is up and runnung.");
 			//creating the reqd variables
 			InputStream input_stream = peer.getPeerSocket().getInputStream();
 		    DataInputStream in = new DataInputStream(new BufferedInputStream(input_stream));
-			do
+			//messages sent from any thread are coalesced and flushed once per iteration
+			
+			requestBlocks();
+			while(am_alive)
 			{
-				
+				Thread.sleep(10); 
+				//Thread.yield();
 				if(peer.getPeerSocket()==null || peer.getPeerSocket().isClosed())
 					this.suicide();
 				
-				//request next piece if peer unchoked message has been received
-				if(!peer.isPeerChoking() && piece_to_download>=0){
-					peer.request(piece_to_download, offset * block_length, block_length);
-				}
-				else if(piece_to_download>=0){
-					rubt.iAmDying(this, piece_to_download);
-					piece_to_download = -1;
-				}
-				
-				setpoint:
-				while(am_alive){
-					Thread.sleep(10); 
-					//Thread.yield();
-					if(peer.getPeerSocket()==null || peer.getPeerSocket().isClosed())
-						this.suicide();
-					
-				synchronized(lock){
-					//sends a have message for all pieces in the queue
-				 while(!piece_queue.isEmpty())
-				 {
-					 int piece_no = piece_queue.remove().intValue();
-					 peer.have(piece_no);
-					 
-				 }
-				}
-				//calls keep alive message
-				sendKeepAlive();
+				tick();
 				
 				//if data in inputstream
-				 if(in.available() > 0){ //TODO: check if it runs
-					 
-					keep_alive_sent = false;
-					
+				if(in.available() > 0){
 					int len = peer.getPeerResponseInt();
-					if (len != 0)
+					if(len < 0)
 					{
-						c = Calendar.getInstance();
-						
-						byte id = peer.getPeerResponseByte(); 
-						
-						//if message received is not bitfield msg then sets the flag to false
-						if(id!=Peer.KEY_BITFIELD)
-							peer.receive_bitfield = false;
-						
-						switch (id)
-						{	
-						case Peer.KEY_CHOKE:
-							chokeReceived();
-							break;
-							
-						case Peer.KEY_UNCHOKE:
-							receiveUnchoke();
-							break setpoint;
-							
-						case Peer.KEY_INTERESTED:
-							//if (peer.unchoke() && !peer.isPeerInterested())
-							if (peer.isClientChoking() && peer.unchoke())
-							{
-								peer.setPeerInterested(true);
-								peer.setClientChoking(false);
-								logger.debug("Peer "+peer.getPeerID()+" sent an interested message");
-							}
-							else
-							{
-								logger.error("Peer "+peer.getPeerID()+" sent illegal interested message. Violated Protocol so closing connection.");
-								this.suicide();
-							}
-							break;
-							
-						case Peer.KEY_UNINTERESTED:
-							peer.setPeerInterested(false);
-							break;
-							
-						case Peer.KEY_HAVE:
-							receiveHave();
-							break setpoint;
-							
-						case Peer.KEY_BITFIELD:
-							//if bitfield flag is set
-							if(peer.receive_bitfield){
-								receiveBitField(len);
-								peer.interested();
-							}
-							else{
-							//else bitfield was received out of order and hence close connection
-								logger.debug("Received bitfield out of sync... closing connection");
-								this.suicide();
-							}
-							break;
-							
-						case Peer.KEY_REQUEST:
-							if(peer.isClientChoking())
-							{
-								logger.error("Peer "+peer.getPeerID()+" sent a request message while choked. Violated Protocol and so closing connection.");
-								this.suicide();
-								break;
-							}
-							
-							int index = peer.getPeerResponseInt();
-							int offset = peer.getPeerResponseInt();
-							int length = peer.getPeerResponseInt();
-							logger.debug("Request received from peer "+peer.getPeerID()+" for i="+index+" o="+offset);
-							sendPiece(index,offset,length);
-							break;
-							
-						case Peer.KEY_PIECE:
-							if(downloadPiece(len))
-							{
-								break setpoint;
-							}
-							break;
-							
-						case Peer.KEY_CANCEL:
-							//Nothing can be done here since requests are responded to immediately and not queued.
-							break;
-							
-						case Peer.KEY_PORT:	//This is not needed
-							break;
-						default:
-							break;
-						}
-					}
-					else{
-						//we were sent the keep alive message
-						sendKeepAlive();
+						this.suicide();
+						break;
 					}
-				
-					try
+					peer.getDownloadBucket().acquire(4 + len);
+					handleMessage(len, len==0 ? null : ByteBuffer.wrap(peer.getPeerResponse(len)));
+				}
+				peer.flush();
+			}
+			//closing the peer connections
+			peer.close();
+			logger.info("PeerController: "+this.id+" is done downloading");
+			
+		} catch (IOException ioe)
+		{
+			this.suicide();
+			logger.error("COULD NOT GET INPUT STREAM FOR PEER SOCKET!");
+		} catch(Exception e)
+		{
+			this.suicide();
+			logger.error(e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Runs the peer session blocking directly on the socket reads.
+	 * <br>Used by the virtual transport where a parked thread costs next to
+	 * nothing, so there is no need for the sleep/poll loop of {@link #run()}.
+	 * The read times out every THROTTLE_TICK so messages queued by other threads are
+	 * written out on this same thread. Partial messages are kept in a
+	 * fixed inbound buffer across timeouts, which only grows for larger messages.
+	 */
+	void runBlocking()
+	{
+		try
+		{
+			logger.debug("PeerController "+this.id+" is up and running on blocking reads.");
+			Socket sock = peer.getPeerSocket();
+			sock.setSoTimeout(PeerEventLoop.THROTTLE_TICK);
+			InputStream input_stream = sock.getInputStream();
+			ByteBuffer in = ByteBuffer.allocate(13 + RUBTClient.block_length);
+			//messages sent from any thread are coalesced and flushed once per iteration
+			
+			requestBlocks();
+			while(am_alive)
+			{
+				int n;
+				try{
+					n = input_stream.read(in.array(), in.position(), in.remaining());
+				}
+				catch(SocketTimeoutException ste)
+				{
+					//nothing to read yet, what was read of the message stays in the buffer
+					n = 0;
+				}
+				if(n < 0)
+				{
+					logger.debug("Peer "+peer.getPeerID()+" closed the connection");
+					this.suicide();
+					break;
+				}
+				in.position(in.position() + n);
+
+				in.flip();
+				int needed = 0;
+				while(in.remaining() >= 4 && am_alive)
+				{
+					int len = in.getInt(in.position());
+					if(len < 0 || len > Peer.MAX_MESSAGE)
 					{
-						Thread.sleep(0);
-					} catch (InterruptedException ie)
+						logger.error("Peer "+peer.getPeerID()+" sent a message of length "+len+". Closing connection.");
+						this.suicide();
+						break;
+					}
+					if(in.remaining() < 4 + len)
 					{
-						logger.debug("CANNOT INVOKE SLEEP METHOD!");
+						needed = 4 + len;
+						break;
 					}
-				 }
+					in.position(in.position() + 4);
+					ByteBuffer message = in.slice();
+					message.limit(len);
+					in.position(in.position() + len);
+					//holding back the next read lets tcp slow the peer down
+					peer.getDownloadBucket().acquire(4 + len);
+					handleMessage(len, len==0 ? null : message);
+				}
+				in.compact();
+
+				//message larger than the buffer, grow it
+				if(needed > in.capacity())
+				{
+					in.flip();
+					in = ByteBuffer.allocate(needed).put(in);
 				}
-			}while (((piece_to_download = rubt.getNextPieceToDownload(this)) >= 0 && am_alive)||am_alive);
+				tick();
+				peer.flush();
+			}
 			//closing the peer connections
 			peer.close();
 			logger.info("PeerController: "+this.id+" is done downloading");
 			
 		} catch (IOException ioe)
 		{
-			rubt.iAmDying(this,piece_to_download);
-			peer.close();
-			logger.error("COULD NOT GET INPUT STREAM FOR PEER SOCKET!");
+			this.suicide();
+			logger.error("Connection to peer "+peer.getPeerID()+" lost: "+ioe.getMessage());
 		} catch(Exception e)
 		{
-			rubt.iAmDying(this,piece_to_download);
-			peer.close();
+			this.suicide();
 			logger.error(e.getMessage());
 		}
+	}
+	
+	/**
+	 * Checks if this controller is still running.
+	 * Unlike isAlive() this also holds for controllers driven by a PeerEventLoop.
+	 * @return
+	 */
+	public boolean isRunning()
+	{
+		return am_alive;
+	}
+	
+	/**
+	 * Periodic work. Sends a have message for all the pieces in
+	 * the queue and keeps the connection alive.
+	 */
+	void tick()
+	{
+		synchronized(lock){
+			//sends a have message for all pieces in the queue
+			while(!piece_queue.isEmpty())
+			{
+				int piece_no = piece_queue.remove().intValue();
+				peer.have(piece_no);
+			}
+		}
+		//calls keep alive message
+		sendKeepAlive();
 		
+		//a seed wants nothing, it only uploads
+		if(rubt.isSeeding())
+			return;
+		
+		//pieces were completed or priorities changed, check if the peer still has something we want
+		if(wanted_version != rubt.getWantedVersion())
+			updateInterest();
+		
+		//an idle controller looks for work again every tick, blocks may have been handed back
+		//by a failed verification or a dying controller, or the buffer pool may have room again
+		if(pipeline.getOutstandingCount() == 0 && !peer.isPeerChoking())
+		{
+			long now = System.currentTimeMillis();
+			if(now >= next_retry)
+			{
+				next_retry = now + PeerEventLoop.TICK;
+				requestBlocks();
+			}
+		}
 	}
 	
-	private void sendPiece(int index, int offset, int length)
+	/**
+	 * Handles one message received from the peer
+	 * @param len the length prefix of the message
+	 * @param message the message id followed by the payload, null for keep alive
+	 * @throws Exception
+	 */
+	void handleMessage(int len, ByteBuffer message) throws Exception
 	{
-		try{
+		keep_alive_sent = false;
+		
+		if (len == 0)
+		{
+			//we were sent the keep alive message
+			sendKeepAlive();
+			return;
+		}
+		
+		last_message = System.currentTimeMillis();
+		
+		byte id = message.get(); 
+		
+		//if message received is not bitfield msg then sets the flag to false
+		if(id!=Peer.KEY_BITFIELD)
+			peer.receive_bitfield = false;
+		
+		switch (id)
+		{	
+		case Peer.KEY_CHOKE:
+			chokeReceived();
+			break;
 			
-			//peer already has the piece but still requesting it
+		case Peer.KEY_UNCHOKE:
+			receiveUnchoke();
+			requestBlocks();
+			break;
+			
+		case Peer.KEY_INTERESTED:
+			peer.setPeerInterested(true);
+			logger.debug("Peer "+peer.getPeerID()+" sent an interested message");
+			//unchoke right away while there is a free slot, else the choker decides
+			controller.interestReceived(this);
+			break;
+			
+		case Peer.KEY_UNINTERESTED:
+			peer.setPeerInterested(false);
+			break;
+			
+		case Peer.KEY_HAVE:
+			receiveHave(message.getInt());
+			requestBlocks();
+			break;
+			
+		case Peer.KEY_BITFIELD:
+			//if bitfield flag is set
+			if(peer.receive_bitfield){
+				byte[] bitfield = new byte[len-1];
+				message.get(bitfield);
+				receiveBitField(bitfield);
+				updateInterest();
+			}
+			else{
+			//else bitfield was received out of order and hence close connection
+				logger.debug("Received bitfield out of sync... closing connection");
+				this.suicide();
+			}
+			break;
+			
+		case Peer.KEY_REQUEST:
+			//requests sent before our choke reached the peer are still on the way, they are dropped
+			if(peer.isClientChoking())
+			{
+				logger.debug("Peer "+peer.getPeerID()+" sent a request message while choked, ignoring it");
+				break;
+			}
+			
+			int index = message.getInt();
+			int offset = message.getInt();
+			int length = message.getInt();
+			logger.debug("Request received from peer "+peer.getPeerID()+" for i="+index+" o="+offset);
+			queueUpload(index,offset,length);
+			break;
+			
+		case Peer.KEY_PIECE:
+			int piece_index = message.getInt();
+			int begin = message.getInt();
+			downloadPiece(piece_index,begin,message);
+			break;
+			
+		case Peer.KEY_CANCEL:
+			BlockRequest cancelled = new BlockRequest(message.getInt(), message.getInt(), message.getInt());
+			//only a block still in the queue can be cancelled, one already handed to the socket goes out
+			if(uploads.cancel(cancelled))
+				logger.debug("Cancel received from peer "+peer.getPeerID()+" for "+cancelled);
+			break;
+			
+		case Peer.KEY_PORT:	//This is not needed
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/**
+	 * Fills the request pipeline with blocks from the BlockScheduler
+	 */
+	private void requestBlocks()
+	{
+		if(!am_alive || peer.isPeerChoking() || rubt.isSeeding())
+			return;
+		pipeline.fill();
+	}
+	
+	/**
+	 * Checks a request and queues it for the UploadScheduler
+	 * @param index
+	 * @param offset
+	 * @param length
+	 */
+	private void queueUpload(int index, int offset, int length)
+	{
+		//peer already has the piece but still requesting it
 		if(peer.bit_set.get(index))
 		{
 			logger.error("Peer "+peer.getPeerID()+" violated protocol. Requested piece that it already has");
 			this.suicide();
 			return;
 		}
-			//if we have the piece
-		if (rubt.getCompletedBitSet().get(index))
+		if(length <= 0 || length > 2*block_length || offset < 0 || offset + length > rubt.getPieceLength(index))
 		{
-			FileInputStream fis = new FileInputStream(rubt.getOutputFileName());
-			FileChannel input_channel = fis.getChannel();
-			
-			ByteBuffer block_buffer = ByteBuffer.wrap(new byte[length]);
-			input_channel.read(block_buffer, index * block_length);
-			//send the piece
-			peer.piece(index, offset, block_buffer.array());
-			logger.debug("Uploaded bytes to peer "+peer.getPeerID()+" for i="+index+" o="+offset);
-			onUpload(block_buffer.array().length);
+			logger.error("Peer "+peer.getPeerID()+" requested an invalid block i="+index+" o="+offset+" l="+length);
+			return;
 		}
+		//if we have the piece
+		if (!rubt.getCompletedBitSet().get(index))
+			return;
+		if(uploads.add(new BlockRequest(index, offset, length)))
+			rubt.getUploadScheduler().schedule(this);
+		else
+			logger.debug("Request from peer "+peer.getPeerID()+" for i="+index+" o="+offset+" is queued already or over the limit");
+	}
+	
+	/**
+	 * Sends the next run of queued blocks, called by the UploadScheduler
+	 * @param batch max no of adjacent blocks sent at once
+	 * @return {@link UploadScheduler#EMPTY}, {@link UploadScheduler#SERVED} or {@link UploadScheduler#BLOCKED}
+	 */
+	int serveUploads(int batch)
+	{
+		//requests are dropped when the peer is choked, it asks again once unchoked
+		if(!am_alive || peer.isClientChoking())
+		{
+			uploads.clear();
+			return UploadScheduler.EMPTY;
 		}
-		catch(Exception e)
+		if(uploads.isEmpty())
+			return UploadScheduler.EMPTY;
+		//the last run has not been written yet or the upload limit is used up
+		if(peer.getQueuedBytes() >= batch * block_length || !peer.getUploadBucket().hasTokens())
+			return UploadScheduler.BLOCKED;
+		
+		List<BlockRequest> run = uploads.nextRun(batch);
+		if(!run.isEmpty())
 		{
-			e.printStackTrace();
-			logger.error(e.toString());
-			logger.error("Could not send i="+index+" o="+offset+" to peer "+peer.getPeerID());
+			int index = run.get(0).index;
+			if(rubt.getStorage().upload(peer, index, run))
+			{
+				logger.debug("Uploaded "+run.size()+" blocks to peer "+peer.getPeerID()+" for i="+index+" o="+run.get(0).begin);
+				rubt.getUploadScheduler().served(run.size());
+				for(BlockRequest r : run)
+					onUpload(r.length);
+			}
 		}
+		return uploads.isEmpty() ? UploadScheduler.EMPTY : UploadScheduler.SERVED;
 	}
 	
-	private synchronized void onUpload(int length)
+	private void onUpload(int length)
 	{
 		rubt.uploadBytes(length);
-		Calendar tmp = Calendar.getInstance();
-		double time = (tmp.getTimeInMillis()/1000) - (up_c.getTimeInMillis()/1000);
-		peer.down_rate  = length/1000*time;
-		up_c = tmp;
+		up_meter.add(length);
+		//rates shown in kB/s
+		peer.down_rate = up_meter.getRate()/1000;
 		peer.downloadedBytes(length);
-		peer.avg_down_rate = peer.getDownloadedBytes()/(1000*((tmp.getTimeInMillis()/1000) - (start.getTimeInMillis()/1000)));
-		controller.onUpload();
+		peer.avg_down_rate = up_meter.getAverage()/1000;
+		controller.onUpload(length);
 		if(rubt.gui!=null)
 		rubt.gui.update(new ActionEvent(this,GUI.BYTES_UPLOADED,null));
 	}
 	
-	private synchronized void onDownload(int length)
+	private void onDownload(int length)
 	{
 		rubt.downloadBytes(length);
-		Calendar tmp = Calendar.getInstance();
-		double time = (tmp.getTimeInMillis()/1000) - (down_c.getTimeInMillis()/1000);
-		peer.up_rate = length/1000*time;
-		down_c = tmp;
+		down_meter.add(length);
+		//rates shown in kB/s
+		peer.up_rate = down_meter.getRate()/1000;
 		peer.uploadedBytes(length);
-		peer.avg_up_rate = peer.getUploadedBytes()/(1000*((tmp.getTimeInMillis()/1000) - (start.getTimeInMillis()/1000)));
-		controller.onDownload();
+		peer.avg_up_rate = down_meter.getAverage()/1000;
+		controller.onDownload(length);
 		if(rubt.gui!=null)
 		rubt.gui.update(new ActionEvent(this,GUI.BYTES_DOWNLOADED,null));
 	}
 	
-	private void receiveHave()
+	private void receiveHave(int piece_index)
 	{
-		int piece_index = peer.getPeerResponseInt();
 		logger.debug("Have message for piece "+piece_index+" received from peer "+peer.getPeerID());
 		
 		if(piece_index<0 || piece_index>=rubt.getNoPieces())
 		{
 			logger.debug("Invalid have message received hence closing connection.");
 			this.suicide();
+			return;
 		}
 		
 		
-		//if peer has piece that not in global bit set and we are not interested then
-		//send interested message
-		if(!rubt.getGlobalBitSet().get(piece_index)&&!peer.isClientInterested())
-		{
-			peer.interested();
-		}
-		
 		if(peer.bit_set.get(piece_index))
 		{
 			logger.error("Peer "+peer.getPeerID()+" sent a have message for piece it already had before\n Violated protocol so closing connection");
 			this.suicide();
+			return;
+		}
+		
+		//counted under the same lock as dying, so peerGone takes back every piece counted here
+		synchronized(alive_lock)
+		{
+			if(!am_alive)
+				return;
+			peer.addPiece(piece_index);
+			rubt.updateBit(piece_index);
 		}
+		if(dropIfSeed())
+			return;
 		
-		peer.bit_set.set(piece_index,true);
-		rubt.updateBit(piece_index);
+		//if peer has a piece we want and we are not interested then
+		//send interested message
+		if(!peer.isClientInterested() && rubt.isWanted(piece_index))
+			peer.interested();
 	}
 	
 	private void chokeReceived()
 	{
 		logger.debug("Peer "+peer.getPeerID()+" is choking controller "+this.id);
-		//we have been choked give away the piece currently downloading throw away old data
-		rubt.iAmDying(this, piece_to_download);
 		peer.setPeerChoking(true);
-		piece_to_download = -1;
-		downloaded_so_far = 0;
-		offset = 0;
-		buf = ByteBuffer.allocate(0);
-		
+		//the peer discards our requests when it chokes us, hand the blocks back
+		pipeline.clear();
 	}
 	
-	private byte[] digest(byte[] bytes)
+	/**
+	 * Called by the PieceVerifier once the hash of a piece this controller
+	 * completed has been checked. A good piece is queued to be written,
+	 * a bad one is handed to the SmartBan and back to be downloaded again.
+	 * @param piece
+	 * @param ok true if the hash matched
+	 */
+	void pieceVerified(PartialPiece piece, boolean ok)
 	{
-		MessageDigest sha;
-		try {
-			sha = MessageDigest.getInstance("SHA-1");
-			sha.update(bytes);
-			return sha.digest();
+		if(ok)
+		{
+			rubt.getSmartBan().piecePassed(piece);
+			piece.buf.rewind();
+			rubt.getDiskWriter().write(piece.index, piece.buf, this);
+		}
+		else
+		{
+			rubt.getSmartBan().pieceFailed(piece);
+			//give the piece back so it gets downloaded again
+			rubt.iAmDying(this, piece.index);
+			rubt.getPieceBufferPool().release(piece.buf);
 		}
-		catch(Exception e)
-		{}
-		return null;
 	}
 	
-	private boolean verify(int index,byte[] received_bytes)
+	/**
+	 * Called by the DiskWriter once a verified piece has been written.
+	 * Only now is the piece marked completed and announced to the other peers.
+	 * @param index
+	 * @param piece
+	 * @param ok true if the write succeeded
+	 */
+	void pieceWritten(int index, ByteBuffer piece, boolean ok)
 	{
-			byte[] received_hash = digest(received_bytes);
-			byte[] hash = torrent.piece_hashes[index].array();
-			if(MessageDigest.isEqual(hash, received_hash))
-			{
-				logger.debug("SHA-1 hash verified for piece:"+index);
-				return true;
-			}
-			else{
-				logger.error("Could not verify has for piece "+index+"...Who ate the bytes??");
-				peer.corrupted_bit_set.set(piece_to_download, true);
-				rubt.iAmDying(this, piece_to_download);
-			}
-		return false;
+		if(ok)
+		{
+			rubt.leftBytes(piece.limit());
+			rubt.pieceDownloaded(index);
+			controller.sendHave(index,this);
+		}
+		else
+			rubt.iAmDying(this, index);
+		//the piece is on disk, the buffer can be reused
+		rubt.getPieceBufferPool().release(piece);
+	}
+	
+	/**
+	 * Sends interested or uninterested when whether the peer has a piece we want changed
+	 */
+	private void updateInterest()
+	{
+		wanted_version = rubt.getWantedVersion();
+		boolean want = rubt.isInteresting(peer.bit_set);
+		if(want && !peer.isClientInterested())
+			peer.interested();
+		else if(!want && peer.isClientInterested())
+			peer.uninterested();
+	}
+	
+	/**
+	 * Returns the Controller this controller belongs to
+	 * @return
+	 */
+	Controller getController()
+	{
+		return controller;
+	}
+	
+	/**
+	 * Returns the rate in bytes/s our peer has been sending to us lately
+	 * @return
+	 */
+	public double getDownloadRate()
+	{
+		return down_meter.getRate();
 	}
-		 
-	private boolean isLastPiece()
+	
+	/**
+	 * Returns the rate in bytes/s we have been sending to our peer lately
+	 * @return
+	 */
+	public double getUploadRate()
 	{
-		return piece_to_download == rubt.getNoPieces()-1;
+		return up_meter.getRate();
 	}
 	
 	/**
@@ -408,11 +618,10 @@ public class PeerController extends Thread{
 		return peer.hasPiece(i);
 	}
 	
-	private void receiveBitField(int length) throws Exception
+	private void receiveBitField(byte[] bitfield_array) throws Exception
 	{
 		int l = 0;
 		BitSet bs = new BitSet(rubt.getNoPieces());
-		byte bitfield_array[] = peer.getPeerResponse(length-1);
 		
 		byte bit_mask = (byte)0x80;
 		//reading in bitfield bit by bit
@@ -434,9 +643,15 @@ public class PeerController extends Thread{
 		{
 			//update the global bitset
 			logger.debug("BitField successfully received");
-			peer.bit_set = bs;
-			rubt.uploadBitSet(bs);
+			synchronized(alive_lock)
+			{
+				if(!am_alive)
+					return;
+				peer.setBitSet(bs);
+				rubt.uploadBitSet(bs);
+			}
 			logger.info("Bitfield received - peerController "+this.id);
+			dropIfSeed();
 		}
 		else{
 			throw new Exception("BitField Error: Size does not match");
@@ -447,82 +662,47 @@ public class PeerController extends Thread{
 	{
 		logger.info("Unchoke received - peerController "+this.id);
 		peer.setPeerChoking(false);
-		//peer.request((piece_to_download=rubt.getNextPieceToDownload(this)), offset * block_length, block_length);
 	}
 	
 
 	
-	private boolean downloadPiece(int len)
+	private void downloadPiece(int index, int begin, ByteBuffer block)
 	{
-		piece_to_download = peer.getPeerResponseInt();
-		offset = peer.getPeerResponseInt() / block_length;
-		logger.debug("i = " + piece_to_download + ", o = " + offset);
-		
-		
-		byte[] received_bytes = peer.getPeerResponse(len - 9);
-		onDownload(received_bytes.length);
-		byte[] tmp_buffer = buf.array();
+		logger.debug("i = " + index + ", o = " + begin);
+		int length = block.remaining();
 		
-		//allocate only the amount of bytes required
-		
-		//if last piece and last block
-		if(downloaded_so_far+1==blocks_per_piece && isLastPiece())
-			buf = ByteBuffer.allocate(buf.capacity()+ (torrent.file_length % block_length));
-		else //else
-			buf = ByteBuffer.allocate(buf.capacity()+block_length);
-		
-		//put the old bytes + the new received_bytes in the buffer
-		buf.put(tmp_buffer);
-		buf.put(received_bytes);
-		
-		//if piece complete or if last block of last piece then verify, send have msg & write
-		if(downloaded_so_far+1==blocks_per_piece || (downloaded_so_far+1==blocks_for_last_piece && isLastPiece()))
-		{	
-			if(verify(piece_to_download,buf.array())){
-				rubt.writeBytes(buf,piece_to_download);
-				rubt.leftBytes(buf.array().length);
-				rubt.pieceDownloaded(piece_to_download);
-				controller.sendHave(piece_to_download,this);
+		if(!pipeline.received(index, begin, length))
+		{
+			if(pipeline.wasCancelled(index, begin, length))
+			{
+				//endgame duplicate that crossed our cancel
+				onDownload(length);
+				rubt.getBlockScheduler().wasted(length);
 			}
-			buf = ByteBuffer.allocate(0);
+			else
+				logger.debug("Peer "+peer.getPeerID()+" sent a block that was not requested i="+index+" o="+begin);
+			return;
 		}
 		
-		received_bytes = null;
-		downloaded_so_far++;
-		
-
+		onDownload(length);
 		
-		//if not last block
-		if (downloaded_so_far + 1 < blocks_per_piece)
-		{
-				//requesting next block of data for the same piece
-				peer.request(piece_to_download, ++offset * block_length, block_length);
-		}
-		//if last block
-		else if (downloaded_so_far + 1 == blocks_per_piece)
-		{
-			//This is the last block that needs to be downloaded
-			//It may have an irregular length (not 16384 bytes)
-			
-			int length;
-			
-			if(isLastPiece())
-				length = torrent.file_length % block_length;
-			else
-				length = block_length;
-			
-			peer.request(piece_to_download, ++offset * block_length, length);
-			
-		} else
-		{
-			//piece downloaded. break out and get next piece
-			downloaded_so_far = 0;
-			offset = 0;
-			buf = ByteBuffer.allocate(0);
-			return true;
-		}
+		//if the block completed its piece hand it over to be verified and written
+		PartialPiece done = rubt.getBlockScheduler().received(this, index, begin, block);
+		if(done != null)
+			rubt.getPieceVerifier().verify(done, this);
 		
-		return false;
+		//keep the window full
+		requestBlocks();
+	}
+	
+	/**
+	 * Cancels a block requested from our peer because it arrived from another one in endgame
+	 * @param r
+	 */
+	void cancelRequest(BlockRequest r)
+	{
+		if(pipeline.cancel(r))
+			peer.cancel(r.index, r.begin, r.length);
 	}
 	
 	/**
@@ -530,17 +710,75 @@ public class PeerController extends Thread{
 	 */
 	public void suicide()
 	{
+		if(!die())
+			return;
 		logger.debug("PeerController "+getPCId()+" is committing suicide");
-		rubt.iAmDying(this, piece_to_download);
+		//hand the blocks we were waiting for to the other controllers
+		pipeline.clear();
+		uploads.clear();
+		logger.debug("PeerController "+getPCId()+" messages sent = "+peer.getMessageCount()+", upload requests dropped = "+uploads.getDroppedCount()
+				+", duplicate = "+uploads.getDuplicateCount()+", cancelled = "+uploads.getCancelledCount());
+		//the peer's pieces are no longer available from us
+		rubt.peerGone(peer.bit_set);
 		peer.close();
-		am_alive = false;
+		controller.controllerDied(this);
+	}
+	
+	/**
+	 * Closes the connection if both we and our peer are seeds
+	 * @return true if the connection was closed
+	 */
+	boolean dropIfSeed()
+	{
+		if(!rubt.isSeeding() || peer.getPieceCount() < rubt.getNoPieces())
+			return false;
+		logger.debug("Peer "+peer.getPeerID()+" is a seed too, closing connection");
+		this.suicide();
+		return true;
+	}
+	
+	/**
+	 * Bans our peer for sending corrupt data and closes the connection
+	 * @return false if the controller was already closed
+	 */
+	boolean ban()
+	{
+		boolean was_alive = am_alive;
+		controller.ban(peer);
+		this.suicide();
+		return was_alive;
+	}
+	
+	/**
+	 * Checks if our peer is suspected of corrupting the piece, other peers
+	 * are asked for it first
+	 * @param i
+	 * @return
+	 */
+	public boolean isSuspect(int i)
+	{
+		return peer.corrupted_bit_set.get(i);
+	}
+	
+	/**
+	 * Marks this controller dead. Holds the same lock as the have and bitfield
+	 * accounting, which is never done once the controller is dead.
+	 * @return false if it already was
+	 */
+	private boolean die()
+	{
+		synchronized(alive_lock)
+		{
+			boolean was_alive = am_alive;
+			am_alive = false;
+			return was_alive;
+		}
 	}
 	
 	private void sendKeepAlive()
 	{
 		//if the time elapsed since last message sent was more than 2min then send a keep alive message
-		Calendar c2 = Calendar.getInstance();
-		if(c2.getTimeInMillis() - c.getTimeInMillis() > 120000)
+		if(System.currentTimeMillis() - last_message > 120000)
 		{
 			//if keep alive already sent once and no response for 2min close connection
 			if(keep_alive_sent)
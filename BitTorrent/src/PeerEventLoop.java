@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives a set of peer connections from a single thread.
+ * <br>Instead of every PeerController polling its own socket, the loop
+ * waits on a Selector, reads whole messages off the non-blocking channels
+ * and hands them to the PeerController that owns the connection.
+ * A Peer that queues messages puts itself in the loop's ready set and only
+ * those peers are flushed, the rest of the channel is written when the
+ * selector reports it writable. The periodic work runs once every {@link #TICK}.
+ * <br>When a bandwidth limit is set the peers are served in turns, starting
+ * from a different one every turn, and a peer out of tokens is not read
+ * from or written to until its bucket refills.
+ *
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PeerEventLoop extends Thread{
+
+	/**
+	 * Time in ms between two runs of the periodic work (have queue,
+	 * keep alive) of the controllers
+	 */
+	final static int 			TICK = 1000;
+	/**
+	 * Time in ms the loop waits while a peer is held back by a bandwidth limit
+	 */
+	final static int 			THROTTLE_TICK = 20;
+
+	private Selector 								selector;
+	private ConcurrentLinkedQueue<PeerController> 	pending;
+	private ConcurrentLinkedQueue<Peer> 			ready;
+	private AtomicBoolean 							woken;
+	//peers held back by a bandwidth limit, checked again every THROTTLE_TICK
+	private LinkedHashSet<SelectionKey> 			held;
+	private Logger 									logger;
+	private boolean 								am_alive;
+	private long 									next_tick;
+	private int 									turn;
+
+	PeerEventLoop(RUBTClient r, String id) throws IOException
+	{
+		super("PeerEventLoop-"+id);
+		logger = r.logger;
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<PeerController>();
+		ready = new ConcurrentLinkedQueue<Peer>();
+		woken = new AtomicBoolean();
+		held = new LinkedHashSet<SelectionKey>();
+		am_alive = true;
+	}
+
+	/**
+	 * Hands a PeerController whose handshake is done over to this loop
+	 * @param pc
+	 */
+	public void register(PeerController pc)
+	{
+		pending.add(pc);
+		selector.wakeup();
+	}
+
+	/**
+	 * Puts a peer with queued messages in the ready set. The loop is woken up
+	 * at most once per turn however many peers other threads queue messages for.
+	 * @param p
+	 */
+	void wakeup(Peer p)
+	{
+		ready.add(p);
+		if(Thread.currentThread()!=this && woken.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Waits for i/o and dispatches it
+	 * <ul>
+	 * <li>Registers newly assigned controllers
+	 * <li>Reads and dispatches complete messages
+	 * <li>Flushes the peers in the ready set and the writable channels
+	 * <li>Runs the periodic work of every controller once the tick is due
+	 * </ul>
+	 */
+	public void run()
+	{
+		logger.debug(getName()+" has started..");
+		next_tick = System.currentTimeMillis() + TICK;
+		while(am_alive)
+		{
+			try {
+				long wait = Math.max(1, next_tick - System.currentTimeMillis());
+				selector.select(held.isEmpty() ? wait : Math.min(wait, THROTTLE_TICK));
+				woken.set(false);
+				registerPending();
+
+				//rotate the order so no peer always gets the shared budget first
+				SelectionKey[] selected = selector.selectedKeys().toArray(new SelectionKey[0]);
+				selector.selectedKeys().clear();
+				turn++;
+				for(int i=0; i<selected.length; i++)
+				{
+					SelectionKey key = selected[(i + turn) % selected.length];
+					if(key.isValid() && key.isReadable())
+						read(key,(PeerController)key.attachment());
+					if(key.isValid() && key.isWritable())
+						write(key,(PeerController)key.attachment());
+				}
+
+				//peers held back by a limit may have tokens again
+				if(!held.isEmpty())
+				{
+					SelectionKey[] waiting = held.toArray(new SelectionKey[0]);
+					held.clear();
+					for(SelectionKey key : waiting)
+						if(key.isValid())
+							write(key,(PeerController)key.attachment());
+				}
+
+				if(System.currentTimeMillis() >= next_tick)
+				{
+					next_tick = System.currentTimeMillis() + TICK;
+					for(SelectionKey key : selector.keys())
+					{
+						PeerController pc = (PeerController)key.attachment();
+						if(!key.isValid() || !pc.isRunning())
+						{
+							key.cancel();
+							continue;
+						}
+						tick(key,pc);
+					}
+				}
+
+				Peer p;
+				while((p = ready.poll())!=null)
+				{
+					SelectionKey key = p.getLoopKey();
+					if(key.isValid())
+						write(key,(PeerController)key.attachment());
+				}
+			} catch (IOException e) {
+				logger.error(getName()+" "+e.getMessage());
+			}
+		}
+
+		for(SelectionKey key : selector.keys())
+			((PeerController)key.attachment()).suicide();
+		try {
+			selector.close();
+		} catch (IOException e) {}
+		logger.debug(getName()+" is shutting down..");
+	}
+
+	private void registerPending()
+	{
+		PeerController pc;
+		while((pc = pending.poll())!=null)
+		{
+			try {
+				pc.peer.getPeerChannel().configureBlocking(false);
+				pc.peer.register(this, pc.peer.getPeerChannel().register(selector, SelectionKey.OP_READ, pc));
+				logger.debug("PeerController "+pc.getPCId()+" registered with "+getName());
+			} catch (IOException e) {
+				logger.error("Could not register PeerController "+pc.getPCId()+": "+e.getMessage());
+				pc.suicide();
+			}
+		}
+	}
+
+	private void read(SelectionKey key, PeerController pc)
+	{
+		try {
+			ByteBuffer in = pc.peer.inbound;
+			TokenBucket bucket = pc.peer.getDownloadBucket();
+			int quota = bucket.take(in.remaining());
+			if(quota == 0)
+			{
+				//stop selecting the peer until its bucket refills
+				write(key,pc);
+				return;
+			}
+			in.limit(in.position() + quota);
+			int n = pc.peer.getPeerChannel().read(in);
+			in.limit(in.capacity());
+			bucket.refund(quota - Math.max(0, n));
+			if(n < 0)
+			{
+				logger.debug("Peer "+pc.peer.getPeerID()+" closed the connection");
+				pc.suicide();
+				key.cancel();
+				return;
+			}
+
+			in.flip();
+			int needed = 0;
+			while(in.remaining() >= 4 && pc.isRunning())
+			{
+				int len = in.getInt(in.position());
+				if(len < 0 || len > Peer.MAX_MESSAGE)
+				{
+					logger.error("Peer "+pc.peer.getPeerID()+" sent a message of length "+len+". Closing connection.");
+					pc.suicide();
+					key.cancel();
+					return;
+				}
+				if(in.remaining() < 4 + len)
+				{
+					needed = 4 + len;
+					break;
+				}
+				in.position(in.position() + 4);
+				ByteBuffer message = in.slice();
+				message.limit(len);
+				in.position(in.position() + len);
+				pc.handleMessage(len, message);
+				//a burst of messages can queue a lot of replies, write them out early
+				if(pc.isRunning() && pc.peer.isOutboundFull())
+					write(key,pc);
+			}
+			in.compact();
+
+			//message larger than the buffer, grow it
+			if(needed > in.capacity())
+			{
+				in.flip();
+				pc.peer.inbound = ByteBuffer.allocate(needed).put(in);
+			}
+		} catch (Exception e) {
+			logger.error("Could not read from peer "+pc.peer.getPeerID()+": "+e.getMessage());
+			pc.suicide();
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Runs the periodic work of a controller, a failing controller is closed
+	 * rather than ending the loop and stalling every other peer on it
+	 */
+	private void tick(SelectionKey key, PeerController pc)
+	{
+		try {
+			pc.tick();
+		} catch (Exception e) {
+			logger.error("Could not tick peer "+pc.peer.getPeerID()+": "+e.getMessage());
+			pc.suicide();
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Flushes a peer and sets what the selector waits for on its channel.
+	 * A partial write waits for OP_WRITE, a peer out of tokens is held back
+	 */
+	private void write(SelectionKey key, PeerController pc)
+	{
+		try {
+			int ops = 0;
+			//stop selecting a peer we may not read from, or it wakes the loop up for nothing
+			if(pc.peer.getDownloadBucket().hasTokens())
+				ops |= SelectionKey.OP_READ;
+			else
+				held.add(key);
+			if(!pc.peer.flushOutbound())
+			{
+				if(pc.peer.isUploadThrottled())
+					held.add(key);
+				else
+					ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		} catch (Exception e) {
+			logger.error("Could not write to peer "+pc.peer.getPeerID()+": "+e.getMessage());
+			pc.suicide();
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Safely closes this loop and the connections it drives
+	 */
+	public void suicide()
+	{
+		am_alive = false;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,92 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Pool of preallocated piece sized buffers that the PeerControllers
+ * assemble the blocks of a piece in.
+ * <br>Every buffer is piece_length long so blocks can be put straight at their
+ * offset, in any order. The total memory handed out is bounded by a budget,
+ * once it is used up no more pieces are started until a buffer comes back.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PieceBufferPool {
+
+	private int 					piece_length;
+	private int 					max_buffers;
+	private int 					allocated;
+	private LinkedList<ByteBuffer> 	free;
+	
+	/**
+	 * @param piece_length the size of each buffer
+	 * @param budget the max no of bytes held by the pool
+	 */
+	PieceBufferPool(int piece_length, long budget)
+	{
+		this.piece_length = piece_length;
+		max_buffers = (int)Math.max(1, Math.min(Integer.MAX_VALUE, budget / piece_length));
+		allocated = 0;
+		free = new LinkedList<ByteBuffer>();
+	}
+	
+	/**
+	 * Takes a buffer from the pool
+	 * @param length the length of the piece it will hold
+	 * @return a cleared buffer limited to length, or null if the budget is used up
+	 */
+	public synchronized ByteBuffer acquire(int length)
+	{
+		ByteBuffer b;
+		if(!free.isEmpty())
+			b = free.removeFirst();
+		else if(allocated < max_buffers)
+		{
+			b = ByteBuffer.allocate(piece_length);
+			allocated++;
+		}
+		else
+			return null;
+		
+		b.clear();
+		b.limit(length);
+		return b;
+	}
+	
+	/**
+	 * Gives a buffer back to the pool
+	 * @param b
+	 */
+	public synchronized void release(ByteBuffer b)
+	{
+		if(b != null)
+			free.add(b);
+	}
+	
+	/**
+	 * Returns the no of buffers currently in use
+	 * @return
+	 */
+	public synchronized int getInUseCount()
+	{
+		return allocated - free.size();
+	}
+	
+	/**
+	 * Returns the no of buffers allocated so far, the most that were ever in use at once
+	 * @return
+	 */
+	public synchronized int getAllocatedCount()
+	{
+		return allocated;
+	}
+	
+	/**
+	 * Returns the max no of buffers the budget allows
+	 * @return
+	 */
+	public int getCapacity()
+	{
+		return max_buffers;
+	}
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps a running SHA-1 of the piece a PeerController is downloading.
+ * <br>Blocks are hashed as soon as everything before them is in, so when the
+ * last block lands only the tail of the piece is left to hash.
+ * Blocks that arrive ahead of the hashed prefix wait in a small reorder window,
+ * if it overflows the rest of the piece is hashed by the PieceVerifier workers
+ * when the piece completes.
+ * <br>Blocks of one piece can come in from several controllers at once, they are
+ * fed in outside the BlockScheduler lock so the hasher takes its own.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PieceHasher {
+
+	private MessageDigest 				sha;
+	private int 						hashed;
+	private TreeMap<Integer,Integer> 	waiting;
+	private int 						window;
+	private boolean 					overflow;
+	private int 						fed;
+	
+	/**
+	 * @param window the max no of out of order blocks to wait for
+	 * @throws NoSuchAlgorithmException
+	 */
+	PieceHasher(int window) throws NoSuchAlgorithmException
+	{
+		sha = MessageDigest.getInstance("SHA-1");
+		waiting = new TreeMap<Integer,Integer>();
+		this.window = window;
+		reset();
+	}
+	
+	/**
+	 * Starts hashing a new piece
+	 */
+	public synchronized void reset()
+	{
+		sha.reset();
+		waiting.clear();
+		hashed = 0;
+		fed = 0;
+		overflow = false;
+	}
+	
+	/**
+	 * Hashes a block that has just been put in the piece buffer,
+	 * along with any waiting blocks that follow it
+	 * @param piece the piece buffer
+	 * @param begin
+	 * @param length
+	 * @return the no of bytes of the piece fed in so far, this block included
+	 */
+	public synchronized int blockReceived(ByteBuffer piece, int begin, int length)
+	{
+		fed += length;
+		if(overflow)
+			return fed;
+		
+		if(begin != hashed)
+		{
+			if(waiting.size() >= window)
+			{
+				//too far out of order, finish() hashes the rest
+				overflow = true;
+				waiting.clear();
+			}
+			else
+				waiting.put(begin, length);
+			return fed;
+		}
+		
+		sha.update(piece.array(), piece.arrayOffset() + begin, length);
+		hashed += length;
+		
+		Map.Entry<Integer,Integer> next;
+		while((next = waiting.firstEntry()) != null && next.getKey() == hashed)
+		{
+			waiting.remove(next.getKey());
+			sha.update(piece.array(), piece.arrayOffset() + hashed, next.getValue());
+			hashed += next.getValue();
+		}
+		return fed;
+	}
+	
+	/**
+	 * Checks if the blocks came in too far out of order, the rest of the
+	 * piece is then left to hash when it completes
+	 * @return
+	 */
+	public synchronized boolean isOverflowed()
+	{
+		return overflow;
+	}
+	
+	/**
+	 * Hashes what is left of the completed piece
+	 * @param piece the piece buffer, from position 0 to its limit
+	 * @return the SHA-1 of the piece
+	 */
+	public synchronized byte[] finish(ByteBuffer piece)
+	{
+		if(hashed < piece.limit())
+			sha.update(piece.array(), piece.arrayOffset() + hashed, piece.limit() - hashed);
+		byte[] digest = sha.digest();
+		reset();
+		return digest;
+	}
+}
@@ -0,0 +1,336 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Keeps the pieces that can still be picked in buckets by priority and
+ * availability, the no of connected peers that have them.
+ * <br>Bucket [p][a] holds every piece of priority p seen by exactly a peers
+ * that is neither completed nor being downloaded. A piece is moved between
+ * buckets as the peers announce it or its priority changes, and taken out
+ * while it is reserved or skipped, so picking the rarest piece of the highest
+ * priority a peer has only looks at the lowest non empty buckets instead of
+ * every piece of the torrent, and never at more than about twice the pieces
+ * the peer has.
+ * <br>Not thread safe, the RUBTClient calls it while holding its lock.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PiecePicker {
+
+	/**
+	 * The piece is not downloaded at all
+	 */
+	public final static int PRIORITY_SKIP = 0;
+	/**
+	 * The piece is downloaded once nothing of higher priority is left
+	 */
+	public final static int PRIORITY_LOW = 1;
+	/**
+	 * The default priority
+	 */
+	public final static int PRIORITY_NORMAL = 2;
+	/**
+	 * The piece is downloaded before all others
+	 */
+	public final static int PRIORITY_HIGH = 3;
+	/**
+	 * Names of the priorities, indexed by the PRIORITY constants
+	 */
+	public final static String[] PRIORITY_NAMES = {"skip", "low", "normal", "high"};
+	
+	private int[] 		availability;
+	private byte[] 		priority;
+	private boolean[] 	reserved;
+	//position of each piece in its bucket, -1 while reserved or skipped
+	private int[] 		slot;
+	private int[][][] 	buckets;
+	private int[][] 	bucket_size;
+	//no of pickable pieces that at least one peer has
+	private int 		available;
+	private Random 		random;
+	
+	/**
+	 * @param no_pieces the no of pieces in the torrent
+	 */
+	PiecePicker(int no_pieces)
+	{
+		availability = new int[no_pieces];
+		priority = new byte[no_pieces];
+		reserved = new boolean[no_pieces];
+		slot = new int[no_pieces];
+		buckets = new int[PRIORITY_HIGH + 1][4][];
+		bucket_size = new int[PRIORITY_HIGH + 1][4];
+		random = new Random();
+		Arrays.fill(priority, (byte)PRIORITY_NORMAL);
+		for(int i=0;i<no_pieces;i++)
+			insert(i);
+	}
+	
+	/**
+	 * Looks up a priority by its name
+	 * @param name one of {@link #PRIORITY_NAMES}
+	 * @return the PRIORITY constant, -1 if there is none by that name
+	 */
+	public static int parsePriority(String name)
+	{
+		for(int i=0;i<PRIORITY_NAMES.length;i++)
+			if(PRIORITY_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Counts one more peer that has the piece
+	 * @param piece
+	 */
+	public void add(int piece)
+	{
+		boolean pickable = slot[piece] >= 0;
+		if(pickable)
+			delete(piece);
+		availability[piece]++;
+		if(pickable)
+			insert(piece);
+	}
+	
+	/**
+	 * Counts every piece of a peer's bitfield
+	 * @param bs
+	 */
+	public void add(BitSet bs)
+	{
+		for(int i=bs.nextSetBit(0);i>=0 && i<availability.length;i=bs.nextSetBit(i+1))
+			add(i);
+	}
+	
+	/**
+	 * Counts one peer less that has the piece
+	 * @param piece
+	 */
+	public void remove(int piece)
+	{
+		if(availability[piece] == 0)
+			return;
+		boolean pickable = slot[piece] >= 0;
+		if(pickable)
+			delete(piece);
+		availability[piece]--;
+		if(pickable)
+			insert(piece);
+	}
+	
+	/**
+	 * Counts every piece of a peer's bitfield as gone
+	 * @param bs
+	 */
+	public void remove(BitSet bs)
+	{
+		for(int i=bs.nextSetBit(0);i>=0 && i<availability.length;i=bs.nextSetBit(i+1))
+			remove(i);
+	}
+	
+	/**
+	 * Takes a piece out of the picker, because it is being downloaded or completed
+	 * @param piece
+	 */
+	public void reserve(int piece)
+	{
+		reserved[piece] = true;
+		if(slot[piece] >= 0)
+			delete(piece);
+	}
+	
+	/**
+	 * Puts a piece back to be picked again
+	 * @param piece
+	 */
+	public void release(int piece)
+	{
+		reserved[piece] = false;
+		if(slot[piece] < 0 && priority[piece] != PRIORITY_SKIP)
+			insert(piece);
+	}
+	
+	/**
+	 * Changes the priority of a piece
+	 * @param piece
+	 * @param p one of the PRIORITY constants
+	 */
+	public void setPriority(int piece, int p)
+	{
+		p = Math.max(PRIORITY_SKIP, Math.min(PRIORITY_HIGH, p));
+		if(slot[piece] >= 0)
+			delete(piece);
+		priority[piece] = (byte)p;
+		if(!reserved[piece] && p != PRIORITY_SKIP)
+			insert(piece);
+	}
+	
+	/**
+	 * Returns the priority of a piece
+	 * @param piece
+	 * @return
+	 */
+	public int getPriority(int piece)
+	{
+		return priority[piece];
+	}
+	
+	/**
+	 * Checks if the piece can be picked
+	 * @param piece
+	 * @return
+	 */
+	public boolean isPickable(int piece)
+	{
+		return slot[piece] >= 0;
+	}
+	
+	/**
+	 * Returns the no of pieces that can be picked from at least one connected peer
+	 * @return
+	 */
+	public int getAvailableCount()
+	{
+		return available;
+	}
+	
+	/**
+	 * Returns the no of connected peers that have the piece
+	 * @param piece
+	 * @return
+	 */
+	public int getAvailability(int piece)
+	{
+		return availability[piece];
+	}
+	
+	/**
+	 * Picks the rarest piece of the highest priority the peer has,
+	 * a random one among equally rare pieces. The piece is not reserved.
+	 * @param has the pieces the peer has
+	 * @param excluded pieces not to pick, may be null
+	 * @return the piece or -1 if the peer has none that can be picked
+	 */
+	public int pick(BitSet has, BitSet excluded)
+	{
+		return pick(has, excluded, true);
+	}
+	
+	/**
+	 * Picks the most common piece of the highest priority the peer has,
+	 * a random one among equally common pieces. Used to get the first pieces
+	 * quickly, the more peers have a piece the more can send us its blocks.
+	 * The piece is not reserved.
+	 * @param has the pieces the peer has
+	 * @param excluded pieces not to pick, may be null
+	 * @return the piece or -1 if the peer has none that can be picked
+	 */
+	public int pickCommon(BitSet has, BitSet excluded)
+	{
+		return pick(has, excluded, false);
+	}
+	
+	/**
+	 * Scans the buckets from the highest priority and the rarest or most common
+	 * availability down. A peer with most pieces is matched within the first few
+	 * entries, but a peer with only a few would miss through whole buckets. So once
+	 * the misses reach the no of pieces the peer has, its pieces are looked at
+	 * directly instead, which bounds a pick by about twice the pieces the peer has.
+	 * @param has
+	 * @param excluded
+	 * @param rarest
+	 * @return
+	 */
+	private int pick(BitSet has, BitSet excluded, boolean rarest)
+	{
+		int budget = has.cardinality();
+		for(int p=PRIORITY_HIGH;p>PRIORITY_SKIP;p--)
+		{
+			int[][] level = buckets[p];
+			for(int n=1;n<level.length;n++)
+			{
+				int a = rarest ? n : level.length - n;
+				int size = bucket_size[p][a];
+				if(size == 0)
+					continue;
+				int[] bucket = level[a];
+				int start = random.nextInt(size);
+				for(int k=0;k<size;k++)
+				{
+					int piece = bucket[(start + k) % size];
+					if(has.get(piece) && (excluded == null || !excluded.get(piece)))
+						return piece;
+					if(--budget < 0)
+						return pickFrom(has, excluded, rarest);
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Picks among the pieces the peer has, in the same order as the buckets
+	 * @param has
+	 * @param excluded
+	 * @param rarest
+	 * @return
+	 */
+	private int pickFrom(BitSet has, BitSet excluded, boolean rarest)
+	{
+		int best = -1;
+		int ties = 0;
+		for(int i=has.nextSetBit(0);i>=0 && i<slot.length;i=has.nextSetBit(i+1))
+		{
+			if(slot[i] < 0 || availability[i] == 0 || (excluded != null && excluded.get(i)))
+				continue;
+			int order = best < 0 ? -1 : priority[i] != priority[best] ? priority[best] - priority[i]
+					: rarest ? availability[i] - availability[best] : availability[best] - availability[i];
+			if(order < 0)
+			{
+				best = i;
+				ties = 1;
+			}
+			//random among the equally good ones
+			else if(order == 0 && random.nextInt(++ties) == 0)
+				best = i;
+		}
+		return best;
+	}
+	
+	private void insert(int piece)
+	{
+		int p = priority[piece];
+		int a = availability[piece];
+		if(a >= buckets[p].length)
+		{
+			int n = Math.max(a + 1, buckets[p].length * 2);
+			buckets[p] = Arrays.copyOf(buckets[p], n);
+			bucket_size[p] = Arrays.copyOf(bucket_size[p], n);
+		}
+		int[][] level = buckets[p];
+		if(level[a] == null)
+			level[a] = new int[Math.min(16, availability.length)];
+		else if(bucket_size[p][a] == level[a].length)
+			level[a] = Arrays.copyOf(level[a], Math.min(availability.length, level[a].length * 2));
+		level[a][bucket_size[p][a]] = piece;
+		slot[piece] = bucket_size[p][a]++;
+		if(a > 0)
+			available++;
+	}
+	
+	private void delete(int piece)
+	{
+		int p = priority[piece];
+		int a = availability[piece];
+		int[] bucket = buckets[p][a];
+		int last = bucket[--bucket_size[p][a]];
+		bucket[slot[piece]] = last;
+		slot[last] = slot[piece];
+		slot[piece] = -1;
+		if(a > 0)
+			available--;
+	}
+}
@@ -0,0 +1,215 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the SHA-1 hash of completed pieces on a pool of worker threads
+ * so that the connection a piece came in on does not stall while it is hashed.
+ * <br>The result is handed back to the PeerController that downloaded the piece
+ * through {@link PeerController#pieceVerified(PartialPiece, boolean)}.
+ * <br>Pieces are never hashed whole on the calling thread, which may be driving the
+ * connections. The queue is bounded by the no of PieceBufferPool buffers, every
+ * queued piece holds one so it can not fill up. Backpressure comes from the
+ * BlockScheduler, which starts no new pieces while the queue is deep
+ * (see {@link #isBacklogged()}), slowing down the peers outrunning the workers.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class PieceVerifier {
+
+	/**
+	 * Completed pieces are hashed by the worker pool
+	 */
+	public final static String 			MODE_POOL = "pool";
+	/**
+	 * Pieces are hashed block by block as they arrive, see PieceHasher
+	 */
+	public final static String 			MODE_INCREMENTAL = "incremental";
+
+	private TorrentInfo 				torrent;
+	private Logger 						logger;
+	private ThreadPoolExecutor 			workers;
+	private int 						backlog;
+	private ThreadLocal<MessageDigest> 	sha;
+	
+	private long 						verified;
+	private long 						failed;
+	private long 						total_hash_time;
+	private long 						max_hash_time;
+	private long 						total_latency;
+	
+	PieceVerifier(RUBTClient r, int threads)
+	{
+		torrent = r.torrent_file;
+		logger = r.logger;
+		threads = Math.max(1, threads);
+		backlog = threads * 4;
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(r.getPieceBufferPool().getCapacity()), new ThreadFactory(){
+					private int count = 0;
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "PieceVerifier-"+(count++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		sha = new ThreadLocal<MessageDigest>(){
+			protected MessageDigest initialValue()
+			{
+				try {
+					return MessageDigest.getInstance("SHA-1");
+				} catch (NoSuchAlgorithmException e) {
+					return null;
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Verifies a completed piece. A piece that was hashed incrementally as it
+	 * arrived only needs its digest and is checked on the calling thread, any other,
+	 * including one whose blocks came in too far out of order, is queued to the workers.
+	 * @param piece the assembled piece, its buffer from position 0 to its limit
+	 * @param pc the controller to hand the result to
+	 */
+	public void verify(final PartialPiece piece, final PeerController pc)
+	{
+		if(piece.hasher != null && !piece.hasher.isOverflowed())
+		{
+			long start = System.nanoTime();
+			boolean ok = check(piece.index, piece.hasher.finish(piece.buf));
+			long time = System.nanoTime() - start;
+			record(ok, time, time);
+			pc.pieceVerified(piece, ok);
+			return;
+		}
+		
+		final long queued = System.nanoTime();
+		workers.execute(new Runnable(){
+			public void run()
+			{
+				long start = System.nanoTime();
+				boolean ok = piece.hasher != null ? check(piece.index, piece.hasher.finish(piece.buf)) : check(piece.index, piece.buf);
+				long end = System.nanoTime();
+				record(ok, end - start, end - queued);
+				pc.pieceVerified(piece, ok);
+			}
+		});
+	}
+	
+	private boolean check(int index, ByteBuffer piece)
+	{
+		MessageDigest md = sha.get();
+		md.reset();
+		md.update(piece.array(), piece.arrayOffset(), piece.limit());
+		return check(index, md.digest());
+	}
+	
+	private boolean check(int index, byte[] digest)
+	{
+		if(MessageDigest.isEqual(torrent.piece_hashes[index].array(), digest))
+		{
+			logger.debug("SHA-1 hash verified for piece:"+index);
+			return true;
+		}
+		logger.error("Could not verify has for piece "+index+"...Who ate the bytes??");
+		return false;
+	}
+	
+	private synchronized void record(boolean ok, long hash_time, long latency)
+	{
+		if(ok)
+			verified++;
+		else
+			failed++;
+		total_hash_time += hash_time;
+		total_latency += latency;
+		max_hash_time = Math.max(max_hash_time, hash_time);
+	}
+	
+	/**
+	 * Returns the no of pieces waiting to be hashed
+	 * @return
+	 */
+	public int getQueueDepth()
+	{
+		return workers.getQueue().size();
+	}
+	
+	/**
+	 * Checks if so many pieces are waiting to be hashed that no new ones should be started
+	 * @return
+	 */
+	public boolean isBacklogged()
+	{
+		return getQueueDepth() >= backlog;
+	}
+	
+	/**
+	 * Returns the no of pieces that passed verification
+	 * @return
+	 */
+	public synchronized long getVerifiedCount()
+	{
+		return verified;
+	}
+	
+	/**
+	 * Returns the no of pieces that failed verification
+	 * @return
+	 */
+	public synchronized long getFailedCount()
+	{
+		return failed;
+	}
+	
+	/**
+	 * Returns the average time in ms spent hashing a piece,
+	 * only the tail of the piece in incremental mode
+	 * @return
+	 */
+	public synchronized double getAverageHashTime()
+	{
+		long n = verified + failed;
+		return n == 0 ? 0 : total_hash_time / 1e6 / n;
+	}
+	
+	/**
+	 * Returns the longest time in ms spent hashing a piece
+	 * @return
+	 */
+	public synchronized double getMaxHashTime()
+	{
+		return max_hash_time / 1e6;
+	}
+	
+	/**
+	 * Returns the average time in ms from a piece being queued to its result, 
+	 * including the time spent waiting for a worker
+	 * @return
+	 */
+	public synchronized double getAverageLatency()
+	{
+		long n = verified + failed;
+		return n == 0 ? 0 : total_latency / 1e6 / n;
+	}
+	
+	/**
+	 * Lets the queued pieces finish and stops the workers
+	 */
+	public void shutdown()
+	{
+		workers.shutdown();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for the piece verifier to finish");
+		}
+	}
+}
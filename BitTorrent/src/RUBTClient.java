@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -30,6 +29,118 @@ public class RUBTClient {
 	 * No of active (unchoked) connections maintained
 	 */
 	public final static int		UPLOAD_CAP   = 10;
+	/**
+	 * Seconds between choker rounds
+	 */
+	public final static int		CHOKE_INTERVAL = 10;
+	/**
+	 * No of choker rounds the optimistic unchoke is kept for
+	 */
+	public final static int		OPTIMISTIC_ROUNDS = 3;
+	/**
+	 * No of seconds transfer rates are measured over
+	 */
+	public final static int		RATE_WINDOW = 20;
+	/**
+	 * No of block requests kept in flight per peer (-Drubt.pipeline), between 1 and 250
+	 */
+	public final static int		PIPELINE_DEPTH = Math.max(1, Math.min(250, Integer.getInteger("rubt.pipeline", 10)));
+	/**
+	 * Max no of bytes used to assemble pieces in memory (-Drubt.piece_memory)
+	 */
+	public final static long	PIECE_MEMORY = Long.getLong("rubt.piece_memory", 64L * 1024 * 1024);
+	/**
+	 * No of threads verifying piece hashes (-Drubt.hash_threads)
+	 */
+	public final static int		HASH_THREADS = Integer.getInteger("rubt.hash_threads", Runtime.getRuntime().availableProcessors());
+	/**
+	 * How pieces are hashed (-Drubt.hash_mode).
+	 * <br>"pool" hashes completed pieces on the PieceVerifier threads,
+	 * "incremental" hashes every block as it arrives in order
+	 */
+	public final static String	HASH_MODE    = System.getProperty("rubt.hash_mode", PieceVerifier.MODE_POOL);
+	/**
+	 * No of out of order blocks a piece waits for before giving up on hashing it incrementally
+	 */
+	public final static int		REORDER_WINDOW = Integer.getInteger("rubt.reorder_window", 8);
+	/**
+	 * No of threads writing pieces to disk (-Drubt.disk_threads)
+	 */
+	public final static int		DISK_THREADS = Integer.getInteger("rubt.disk_threads", 2);
+	/**
+	 * No of verified pieces waiting to be written after which no new pieces are started (-Drubt.disk_queue)
+	 */
+	public final static int		DISK_QUEUE   = Integer.getInteger("rubt.disk_queue", 16);
+	/**
+	 * Max no of block requests queued per peer (-Drubt.upload_queue), further requests are ignored
+	 */
+	public final static int		UPLOAD_QUEUE = Integer.getInteger("rubt.upload_queue", 250);
+	/**
+	 * Max no of adjacent blocks read from the disk at once for one peer (-Drubt.upload_batch)
+	 */
+	public final static int		UPLOAD_BATCH = Integer.getInteger("rubt.upload_batch", 4);
+	/**
+	 * No of pieces picked for speed rather than rarity on a fresh start (-Drubt.bootstrap_pieces)
+	 */
+	public final static int		BOOTSTRAP_PIECES = Integer.getInteger("rubt.bootstrap_pieces", 4);
+	/**
+	 * Fetch the pieces ahead of the read cursor in order (-Drubt.streaming)
+	 */
+	public final static boolean	STREAMING = Boolean.getBoolean("rubt.streaming");
+	/**
+	 * No of pieces ahead of the read cursor fetched in order when streaming (-Drubt.stream_window)
+	 */
+	public final static int		STREAM_WINDOW = Integer.getInteger("rubt.stream_window", 16);
+	/**
+	 * Time in ms the consumer takes to read a piece when streaming (-Drubt.stream_piece_time)
+	 */
+	public final static int		STREAM_PIECE_TIME = Integer.getInteger("rubt.stream_piece_time", 1000);
+	/**
+	 * No of choke rounds a peer keeps its upload slot while seeding when other peers are waiting (-Drubt.seed_rounds)
+	 */
+	public final static int		SEED_ROUNDS = Math.max(1, Integer.getInteger("rubt.seed_rounds", 3));
+	/**
+	 * Storage backend (-Drubt.storage), "file" or "mmap"
+	 */
+	public final static String	STORAGE      = System.getProperty("rubt.storage", Storage.TYPE_FILE);
+	/**
+	 * Max size of one mapping of the mmap storage (-Drubt.storage_window)
+	 */
+	public final static long	STORAGE_WINDOW = Long.getLong("rubt.storage_window", 256L * 1024 * 1024);
+	/**
+	 * The mmap storage forces its pages to disk every so many pieces (-Drubt.storage_force),
+	 * 0 only forces them when the client closes
+	 */
+	public final static int		STORAGE_FORCE = Integer.getInteger("rubt.storage_force", 0);
+	/**
+	 * Transport used for the peer connections (-Drubt.transport).
+	 * <br>"nio" drives all the peers from a few PeerEventLoop threads,
+	 * "thread" gives every peer its own PeerController thread and
+	 * "virtual" runs every peer session on a virtual thread with blocking reads
+	 */
+	public final static String	TRANSPORT    = System.getProperty("rubt.transport", Controller.TRANSPORT_NIO);
+	/**
+	 * No of PeerEventLoop threads used by the nio transport (-Drubt.event_loops)
+	 */
+	public final static int		EVENT_LOOPS  = Integer.getInteger("rubt.event_loops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+	/**
+	 * Upload limit in bytes per second shared by every torrent in this process (-Drubt.global_up), 0 for none
+	 */
+	public final static TokenBucket	GLOBAL_UP   = new TokenBucket(Long.getLong("rubt.global_up", 0), null);
+	/**
+	 * Download limit in bytes per second shared by every torrent in this process (-Drubt.global_down), 0 for none
+	 */
+	public final static TokenBucket	GLOBAL_DOWN = new TokenBucket(Long.getLong("rubt.global_down", 0), null);
+	/**
+	 * The commands understood on the console
+	 */
+	final static String			COMMANDS =
+			"  priority <piece> <skip|low|normal|high>     sets the priority of a piece\n"+
+			"  range <offset> <length> <skip|low|normal|high>  sets the priority of a range of bytes\n"+
+			"  limit <up> <down>                            torrent limits in bytes per second, 0 for none\n"+
+			"  peer_limit <up> <down>                       per peer limits in bytes per second, 0 for none\n"+
+			"  global_limit <up> <down>                     limits shared by every torrent in bytes per second, 0 for none\n"+
+			"  stream <offset>                              moves the read cursor when streaming";
 	/**
 	 * The input torrent file
 	 */
@@ -44,10 +155,23 @@ public class RUBTClient {
 	 */
 	public  Logger 				logger;
 
-	private BitSet 				global_bit_set;
-	private BitSet 				working_bit_set;
-	private BitSet 				completed_bit_set;
-	private int[]				piece_counter;
+	private ConcurrentBitSet 	global_bit_set;
+	private ConcurrentBitSet 	working_bit_set;
+	private ConcurrentBitSet 	completed_bit_set;
+	//pieces not completed nor skipped, those that make a peer interesting
+	private ConcurrentBitSet 	wanted_bit_set;
+	//bumped whenever wanted_bit_set changes so the controllers recompute their interest
+	private volatile int 		wanted_version;
+	private PiecePicker			piece_picker;
+	private StreamWindow		stream_window;
+	private PieceBufferPool		piece_pool;
+	private PieceVerifier		piece_verifier;
+	private DiskWriter			disk_writer;
+	private BlockScheduler		block_scheduler;
+	private SmartBan			smart_ban;
+	private UploadScheduler		upload_scheduler;
+	private TokenBucket			upload_bucket;
+	private TokenBucket			download_bucket;
 
 	private String 				output_file_name;
 	/**
@@ -56,8 +180,10 @@ public class RUBTClient {
 	public  String 				input_torrent_name;
 	private String 				peer_id;
 	
-	private FileChannel 		output_file_channel;
-	private FileOutputStream	fos;	
+	private volatile Storage 	storage;
+	//the storage the pieces were written to, kept open for the uploads still queued from it
+	private Storage 			retired_storage;
+	private volatile boolean 	seeding;
 	/**
 	 * The output file
 	 */
@@ -65,6 +191,9 @@ public class RUBTClient {
 	private int 				bytes_up;
 	private int 				bytes_down;
 	private int 				bytes_left;
+	private long 				bytes_verified;
+	private long 				start_time;
+	private long 				first_piece_time;
 	
 	/**
 	 * The Graphical User Interface if set to null (command line only)
@@ -86,20 +215,37 @@ public class RUBTClient {
 			torrent_file = new TorrentInfo(getFileBytes(new File(input_torrent_name)));
 		
 			bytes_left = torrent_file.file_length;
+			start_time = System.currentTimeMillis();
+			first_piece_time = -1;
 			
-			global_bit_set = new BitSet(getNoPieces());
-			working_bit_set = new BitSet(getNoPieces());
-			completed_bit_set = new BitSet(getNoPieces());
-			piece_counter  = new int[getNoPieces()];
-			for(int i=0;i<piece_counter.length;i++)
-				piece_counter[i] = 0;
-			
+			global_bit_set = new ConcurrentBitSet(getNoPieces());
+			working_bit_set = new ConcurrentBitSet(getNoPieces());
+			completed_bit_set = new ConcurrentBitSet(getNoPieces());
+			wanted_bit_set = new ConcurrentBitSet(getNoPieces());
+			for(int i=0;i<getNoPieces();i++)
+				wanted_bit_set.set(i);
+			piece_picker = new PiecePicker(getNoPieces());
+			if(STREAMING)
+				stream_window = new StreamWindow(this, STREAM_WINDOW, STREAM_PIECE_TIME);
+			piece_pool = new PieceBufferPool(torrent_file.piece_length, PIECE_MEMORY);
+			piece_verifier = new PieceVerifier(this, HASH_THREADS);
+			disk_writer = new DiskWriter(this, DISK_THREADS, DISK_QUEUE);
+			block_scheduler = new BlockScheduler(this);
+			smart_ban = new SmartBan(this);
+			upload_bucket = new TokenBucket(Long.getLong("rubt.up_limit", 0), GLOBAL_UP);
+			download_bucket = new TokenBucket(Long.getLong("rubt.down_limit", 0), GLOBAL_DOWN);
+			upload_bucket.setChildRate(Long.getLong("rubt.peer_up_limit", 0));
+			download_bucket.setChildRate(Long.getLong("rubt.peer_down_limit", 0));
 			peer_id = generatePeerId();
 			
-			//create file channel for random access
+			//open the storage for random access
 			f = new File(output_file_name);
-			fos = new FileOutputStream(f,true);
-			output_file_channel = fos.getChannel();
+			if(Storage.TYPE_MMAP.equals(STORAGE))
+				storage = new MappedStorage(this, f, STORAGE_WINDOW, STORAGE_FORCE);
+			else
+				storage = new FileStorage(this, f);
+			upload_scheduler = new UploadScheduler(this, UPLOAD_BATCH);
+			upload_scheduler.start();
 			
 			
 		}
@@ -156,17 +302,58 @@ public class RUBTClient {
 		while(true)
 		{
 			try {
-				System.out.print("Enter 'q' or 'quit' to close program: ");
+				System.out.print("Enter 'q' or 'quit' to close program, 'help' for the other commands: ");
 				String in = br.readLine();
 				if(in.equals("q") || in.equals("quit"))
 				{
 					rubt.cleanUp();
 					System.exit(1);
 				}
+				if(!rubt.command(in.trim().split("\\s+")))
+					System.out.println(COMMANDS);
 			} catch (IOException e) {}
 		}
 	}
 	
+	/**
+	 * Runs a command typed on the console
+	 * @param args the command and its arguments
+	 * @return false if the command is not known or its arguments are wrong
+	 */
+	boolean command(String[] args)
+	{
+		try {
+			if(args[0].equals("priority") && args.length == 3)
+			{
+				int piece = Integer.parseInt(args[1]);
+				int priority = PiecePicker.parsePriority(args[2]);
+				if(piece < 0 || piece >= getNoPieces() || priority < 0)
+					return false;
+				setPiecePriority(piece, priority);
+			}
+			else if(args[0].equals("range") && args.length == 4)
+			{
+				int priority = PiecePicker.parsePriority(args[3]);
+				if(priority < 0)
+					return false;
+				setRangePriority(Long.parseLong(args[1]), Long.parseLong(args[2]), priority);
+			}
+			else if(args[0].equals("limit") && args.length == 3)
+				setRateLimits(Long.parseLong(args[1]), Long.parseLong(args[2]));
+			else if(args[0].equals("peer_limit") && args.length == 3)
+				setPeerRateLimits(Long.parseLong(args[1]), Long.parseLong(args[2]));
+			else if(args[0].equals("global_limit") && args.length == 3)
+				setGlobalRateLimits(Long.parseLong(args[1]), Long.parseLong(args[2]));
+			else if(args[0].equals("stream") && args.length == 2 && STREAMING)
+				setStreamPosition(Long.parseLong(args[1]));
+			else
+				return args[0].length() == 0;
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
 	private String sessionFile()
 	{
 		String s=input_torrent_name+"-"+output_file_name;
@@ -190,6 +377,12 @@ public class RUBTClient {
 			for(int i=0;i<getNoPieces();i++)
 			{
 				completed_bit_set.set(i,f.read()==1 ? true : false);
+				if(completed_bit_set.get(i))
+				{
+					piece_picker.reserve(i);
+					wanted_bit_set.clear(i);
+					bytes_verified += getPieceLength(i);
+				}
 			}
 			
 			//reads in the bytes uploaded
@@ -217,7 +410,7 @@ public class RUBTClient {
 	 * Returns the global bit set
 	 * @return
 	 */
-	public BitSet getGlobalBitSet()
+	public ConcurrentBitSet getGlobalBitSet()
 	{
 		return global_bit_set;
 	}
@@ -235,6 +428,10 @@ public class RUBTClient {
 	protected void cleanUp()
 	{
 		controller.close();
+		upload_scheduler.suicide();
+		//let the pieces that are still being hashed reach the disk
+		piece_verifier.shutdown();
+		disk_writer.shutdown();
 		
 		try {
 			//saves the state of the completed bit set
@@ -262,8 +459,9 @@ public class RUBTClient {
 			f.write(left_bb.array());
 			
 			f.close();
-			output_file_channel.close();
-			fos.close();
+			storage.close();
+			if(retired_storage != null)
+				retired_storage.close();
 		} catch (Exception e) {
 			logger.error(e.getMessage());
 		}
@@ -271,9 +469,146 @@ public class RUBTClient {
 		System.out.println("Bytes uploaded = " + bytes_up+" (indicates the total bytes sent by the client to other peers through piece messages)");
 		System.out.println("Bytes downloaded = " + bytes_down+" (indicates the bytes downloaded even the ones that might have been discarded if a piece hash wasn't verified)");
 		System.out.println("Bytes left = " + bytes_left+" from initial "+torrent_file.file_length);
-		double downloaded_percent = Math.min(100,100-((double)bytes_left/(double)torrent_file.file_length)*100);
-		System.out.println("Progress="+downloaded_percent+"%");
+		System.out.println("Progress="+getProgress()+"%");
 		System.out.println("Ratio="+((double)bytes_up/(double)bytes_down));
+		printStats();
+	}
+	
+	/**
+	 * Prints how the download pipeline performed over the session
+	 */
+	private void printStats()
+	{
+		System.out.println("Time to first piece = "+getTimeToFirstPiece()+" ms");
+		System.out.println("Endgame = "+block_scheduler.getEndgameTime()+" ms, duplicate requests = "+block_scheduler.getDuplicateRequests()
+				+", wasted bytes = "+block_scheduler.getWastedBytes());
+		System.out.println("Pieces verified = "+piece_verifier.getVerifiedCount()+", failed = "+piece_verifier.getFailedCount()
+				+", avg hash = "+piece_verifier.getAverageHashTime()+" ms, max hash = "+piece_verifier.getMaxHashTime()
+				+" ms, avg latency = "+piece_verifier.getAverageLatency()+" ms");
+		System.out.println("Pieces written = "+disk_writer.getWrittenCount()+", avg write = "+disk_writer.getAverageWriteTime()+" ms");
+		System.out.println("Messages per flush = "+OutboundBuffer.getTotalMessagesPerFlush()+", bytes per write = "+OutboundBuffer.getTotalBytesPerWrite());
+		System.out.println("Piece buffers allocated = "+piece_pool.getAllocatedCount()+" of "+piece_pool.getCapacity()
+				+", still in use = "+piece_pool.getInUseCount());
+		System.out.println("Peers banned = "+smart_ban.getBannedCount()+" after "+smart_ban.getFailedCount()+" corrupt pieces");
+		System.out.println("Blocks per upload run = "+upload_scheduler.getBlocksPerRun());
+	}
+	
+	/**
+	 * Returns the length of a piece, the last piece may be shorter
+	 * @param piece_no
+	 * @return int
+	 */
+	public int getPieceLength(int piece_no)
+	{
+		if(piece_no == getNoPieces()-1)
+			return torrent_file.file_length - piece_no*torrent_file.piece_length;
+		return torrent_file.piece_length;
+	}
+	
+	/**
+	 * Returns the pool the pieces being downloaded are assembled in
+	 * @return
+	 */
+	public PieceBufferPool getPieceBufferPool()
+	{
+		return piece_pool;
+	}
+	
+	/**
+	 * Returns the stage that hashes completed pieces
+	 * @return
+	 */
+	public PieceVerifier getPieceVerifier()
+	{
+		return piece_verifier;
+	}
+	
+	/**
+	 * Returns the stage that writes verified pieces
+	 * @return
+	 */
+	public DiskWriter getDiskWriter()
+	{
+		return disk_writer;
+	}
+	
+	/**
+	 * Returns the scheduler that hands out the blocks to download
+	 * @return
+	 */
+	public BlockScheduler getBlockScheduler()
+	{
+		return block_scheduler;
+	}
+	
+	/**
+	 * Returns the bucket limiting the upload of this torrent
+	 * @return
+	 */
+	public TokenBucket getUploadBucket()
+	{
+		return upload_bucket;
+	}
+	
+	/**
+	 * Returns the bucket limiting the download of this torrent
+	 * @return
+	 */
+	public TokenBucket getDownloadBucket()
+	{
+		return download_bucket;
+	}
+	
+	/**
+	 * Sets the upload and download limits of this torrent, takes effect without reconnecting
+	 * @param up bytes per second, 0 for no limit
+	 * @param down bytes per second, 0 for no limit
+	 */
+	public void setRateLimits(long up, long down)
+	{
+		upload_bucket.setRate(up);
+		download_bucket.setRate(down);
+	}
+	
+	/**
+	 * Sets the upload and download limits of every peer of this torrent
+	 * that has not been given a limit of its own
+	 * @param up bytes per second, 0 for no limit
+	 * @param down bytes per second, 0 for no limit
+	 */
+	public void setPeerRateLimits(long up, long down)
+	{
+		upload_bucket.setChildRate(up);
+		download_bucket.setChildRate(down);
+	}
+	
+	/**
+	 * Sets the upload and download limits shared by every torrent in this process
+	 * @param up bytes per second, 0 for no limit
+	 * @param down bytes per second, 0 for no limit
+	 */
+	public static void setGlobalRateLimits(long up, long down)
+	{
+		GLOBAL_UP.setRate(up);
+		GLOBAL_DOWN.setRate(down);
+	}
+	
+	/**
+	 * Returns the scheduler serving the blocks peers request from us
+	 * @return
+	 */
+	public UploadScheduler getUploadScheduler()
+	{
+		return upload_scheduler;
+	}
+	
+	/**
+	 * Returns the tracker of the peers that send corrupt data
+	 * @return
+	 */
+	public SmartBan getSmartBan()
+	{
+		return smart_ban;
 	}
 	
 	/**
@@ -321,25 +656,19 @@ public class RUBTClient {
 	}
 		
 	/**
-	 * Writes the bytes downloaded to the output file
+	 * Writes the bytes downloaded to the output file.
+	 * Called by the DiskWriter threads, it does not take the client's lock
+	 * so piece selection never waits on the disk.
 	 * 
 	 * @param buf
 	 * @param piece_no
 	 * @return
 	 */
-	public synchronized boolean writeBytes(ByteBuffer buf,int piece_no)
+	public boolean writeBytes(ByteBuffer buf,int piece_no)
 	{
-		logger.debug("writing bytes for piece "+piece_no+" | "+buf.array()+" | ");
-		try {
-			//System.out.println(piece_no);
-			buf.rewind();	//This is necessary because the position marker in the ByteBuffer may not initially be at zero
-			output_file_channel.position(piece_no*torrent_file.piece_length);
-			output_file_channel.write(buf);
-			return true;
-		} catch (IOException e) {
-			logger.error("Error while writing bytes to file");
-			return false;
-		}
+		logger.debug("writing bytes for piece "+piece_no);
+		buf.rewind();	//This is necessary because the position marker in the ByteBuffer may not initially be at zero
+		return storage.write(piece_no, buf);
 	}
 	
 	/**
@@ -351,20 +680,33 @@ public class RUBTClient {
 	 */
 	public synchronized void uploadBitSet(BitSet bs)
 	{
-		for(int i=0;i<global_bit_set.size();i++)
-		{
-			if(bs.get(i))
-			{
-				global_bit_set.set(i,true);
-				piece_counter[i]= piece_counter[i]+1;
-			}
-		}
+		global_bit_set.or(bs);
+		if(!seeding)
+			piece_picker.add(bs);
 	}
 	
 	public synchronized void updateBit(int piece_index)
 	{
 		global_bit_set.set(piece_index,true);
-		piece_counter[piece_index] = piece_counter[piece_index]+ 1;
+		if(!seeding)
+			piece_picker.add(piece_index);
+	}
+	
+	/**
+	 * Called by a PeerController whose peer went away.
+	 * Takes the peer's pieces out of the availability counts, pieces
+	 * no connected peer has any more are cleared from the global bit set.
+	 * A peer that reconnects is counted again from its new bitfield.
+	 * @param bs the pieces the peer had
+	 */
+	public synchronized void peerGone(BitSet bs)
+	{
+		if(seeding)
+			return;
+		piece_picker.remove(bs);
+		for(int i=bs.nextSetBit(0);i>=0 && i<getNoPieces();i=bs.nextSetBit(i+1))
+			if(piece_picker.getAvailability(i) == 0)
+				global_bit_set.set(i,false);
 	}
 	 
 	/**
@@ -375,11 +717,18 @@ public class RUBTClient {
 	 */
 	public synchronized void pieceDownloaded(int piece)
 	{
-		if(piece>=0){
-			completed_bit_set.set(piece,true);
+		if(piece>=0 && completed_bit_set.set(piece)){
+			bytes_verified += getPieceLength(piece);
+			if(first_piece_time < 0)
+			{
+				first_piece_time = System.currentTimeMillis() - start_time;
+				logger.info("First piece verified after "+first_piece_time+" ms");
+			}
+			if(wanted_bit_set.clear(piece))
+				wanted_version++;
 			if(gui!=null)
 			gui.update(new ActionEvent(this,GUI.PIECE_DOWNLOADED,""+piece));
-			piece_counter[piece] = -1; //signifying piece completed
+			piece_picker.reserve(piece);
 		}
 	}
 	
@@ -393,11 +742,16 @@ public class RUBTClient {
 	public synchronized void iAmDying(PeerController d, int piece_no)
 	{
 		if(piece_no>=0)
-		working_bit_set.set(piece_no,false);
+		{
+			working_bit_set.set(piece_no,false);
+			if(!completed_bit_set.get(piece_no))
+				piece_picker.release(piece_no);
+		}
 	}
 	
 	/**
-	 * Assigns the next piece to download using the rarest available piece
+	 * Assigns the next piece to download using the rarest available piece.
+	 * The PiecePicker keeps the pieces sorted by availability so no scan is needed.
 	 * 
 	 * @param downloader
 	 * @return int
@@ -406,76 +760,196 @@ public class RUBTClient {
 	{
 		int piece_no= -1;
 		
-		if(isCompleted())
+		if(seeding || isCompleted())
 			return piece_no;
 		
 		if(d.peer.isPeerChoking())
 			return piece_no;
 		
-		ArrayList<Integer> available = new ArrayList<Integer>();
-		
-		int min = 0;
-		for(int i=0;i<piece_counter.length;i++)
-		{
-			if(global_bit_set.get(i) && !working_bit_set.get(i) && !completed_bit_set.get(i) && d.pieceExists(i))
-				if(piece_counter[i]>0 && (piece_counter[i]<min || (piece_counter[i]>min && min==0)) )
-				{
-					min = piece_counter[i];
-					//piece_no = i;
-				}
-		}
-		if(min > 0){
-			for(int i=0;i<piece_counter.length;i++)
-			{
-				if(global_bit_set.get(i) && !working_bit_set.get(i) && !completed_bit_set.get(i) && d.pieceExists(i))
-					if(piece_counter[i]==min)
-					{
-						available.add(new Integer(i));
-					}
-			}
-			
-			Random r = new Random();
-			int i = r.nextInt(available.size());
-			piece_no = available.get(i).intValue();
-		}
-		
+		//when streaming the pieces just ahead of the reader come first
+		if(stream_window != null)
+			piece_no = stream_window.pick(d, piece_picker, completed_bit_set);
+		//with nothing to trade yet get a few pieces in quickly
+		if(piece_no < 0 && completed_bit_set.cardinality() < BOOTSTRAP_PIECES)
+			piece_no = pickBootstrap(d);
+		if(piece_no < 0)
+			piece_no = piece_picker.pick(d.peer.bit_set, d.peer.corrupted_bit_set);
+		//pieces the peer is suspected of corrupting only when it has nothing else
+		if(piece_no < 0 && !d.peer.corrupted_bit_set.isEmpty())
+			piece_no = piece_picker.pick(d.peer.bit_set, null);
 		if(piece_no >= 0)
 		{
 			working_bit_set.set(piece_no,true);
+			piece_picker.reserve(piece_no);
 		}
 		
-		
-		//loop all bitsets
-		/*for(int i=0;i<global_bit_set.length();i++)
-		{
-			//if currently not being downloaded i.e not in working_bit_set && not completed
-			if(global_bit_set.get(i) && !working_bit_set.get(i) && !completed_bit_set.get(i))
-			{
-				//and current piece in downloaders->peer->bit_set 
-				if(d.pieceExists(i))
-				{
-					//add piece to working bit set
-					working_bit_set.set(i, true);
-					piece_no = i;
-					break;
-				}	
-			}
-		}*/
 		logger.debug("PeerController "+d.getPCId()+" assigned piece "+piece_no);
 		return piece_no;
 	}
 	
 	/**
-	 * Checks if the file has been completely downloaded
+	 * Picks a piece that can be completed quickly: the short last piece,
+	 * else the piece most peers have, so several of them can send its blocks
+	 * @param d
+	 * @return the piece or -1
+	 */
+	private int pickBootstrap(PeerController d)
+	{
+		int last = getNoPieces() - 1;
+		if(getPieceLength(last) < torrent_file.piece_length && piece_picker.isPickable(last)
+				&& d.pieceExists(last) && !d.isSuspect(last))
+			return last;
+		return piece_picker.pickCommon(d.peer.bit_set, d.peer.corrupted_bit_set);
+	}
+	
+	/**
+	 * Returns the time in ms from the start to the first verified piece
+	 * @return the time or -1 if no piece has been verified yet
+	 */
+	public synchronized long getTimeToFirstPiece()
+	{
+		return first_piece_time;
+	}
+	
+	/**
+	 * Returns the no of pieces nobody is downloading yet that a connected peer has.
+	 * Once it drops to 0 every remaining block is requested and the BlockScheduler goes into endgame.
 	 * @return
 	 */
-	public synchronized boolean isCompleted()
+	public synchronized int getPickableCount()
 	{
-		for(int i=0;i<getNoPieces();i++)
+		return piece_picker.getAvailableCount();
+	}
+	
+	/**
+	 * Sets the priority of a piece, one of the PiecePicker PRIORITY constants.
+	 * Can be changed while downloading, a piece already being downloaded is finished.
+	 * @param piece
+	 * @param priority
+	 */
+	public synchronized void setPiecePriority(int piece, int priority)
+	{
+		piece_picker.setPriority(piece, priority);
+		boolean wanted = priority != PiecePicker.PRIORITY_SKIP && !completed_bit_set.get(piece);
+		if(wanted_bit_set.set(piece, wanted))
+			wanted_version++;
+	}
+	
+	/**
+	 * Sets the priority of the pieces holding the bytes of a range, such as a file.
+	 * <br>A piece fully inside the range takes its priority. A piece the range only
+	 * partly covers is shared with the range next to it, so it keeps the highest
+	 * priority of the two and is never skipped.
+	 * @param offset the first byte of the range
+	 * @param length the no of bytes
+	 * @param priority one of the PiecePicker PRIORITY constants
+	 */
+	public synchronized void setRangePriority(long offset, long length, int priority)
+	{
+		if(length <= 0)
+			return;
+		long end = Math.min(offset + length, torrent_file.file_length);
+		int first = (int)Math.max(0, offset / torrent_file.piece_length);
+		int last = (int)Math.min(getNoPieces() - 1, (end - 1) / torrent_file.piece_length);
+		for(int i=first;i<=last;i++)
 		{
-			if(!completed_bit_set.get(i))
-				return false;
+			long start = (long)i * torrent_file.piece_length;
+			boolean inside = start >= offset && Math.min(start + torrent_file.piece_length, torrent_file.file_length) <= end;
+			if(inside || priority > getPiecePriority(i))
+				setPiecePriority(i, priority);
+		}
+	}
+	
+	/**
+	 * Returns the priority of a piece
+	 * @param piece
+	 * @return
+	 */
+	public synchronized int getPiecePriority(int piece)
+	{
+		return piece_picker.getPriority(piece);
+	}
+	
+	/**
+	 * Checks if we still want a piece, it is neither completed nor skipped
+	 * @param piece
+	 * @return
+	 */
+	public boolean isWanted(int piece)
+	{
+		return wanted_bit_set.get(piece);
+	}
+	
+	/**
+	 * Checks if a peer has any piece we still want
+	 * @param bs the pieces the peer has
+	 * @return
+	 */
+	public boolean isInteresting(BitSet bs)
+	{
+		for(int i=bs.nextSetBit(0);i>=0 && i<getNoPieces();i=bs.nextSetBit(i+1))
+			if(wanted_bit_set.get(i))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Returns a no that changes whenever the set of wanted pieces does
+	 * @return
+	 */
+	public int getWantedVersion()
+	{
+		return wanted_version;
+	}
+	
+	/**
+	 * Moves the read cursor of the streaming mode to the piece holding a byte of the file.
+	 * Called by the consumer as it reads, or from the console with the stream command.
+	 * @param offset
+	 */
+	public synchronized void setStreamPosition(long offset)
+	{
+		if(stream_window != null)
+			stream_window.setCursor((int)(offset / torrent_file.piece_length));
+	}
+	
+	/**
+	 * Checks if the file has been completely downloaded
+	 * @return
+	 */
+	public boolean isCompleted()
+	{
+		return completed_bit_set.isFull();
+	}
+	
+	/**
+	 * Checks if the client switched to seeding
+	 * @return
+	 */
+	public boolean isSeeding()
+	{
+		return seeding;
+	}
+	
+	/**
+	 * Switches to seeding once the download is complete.
+	 * <br>Uploads are served from a read only mapping of the file from now on and the
+	 * piece availability is no longer tracked since nothing will be picked again.
+	 * @return true if the client just switched, false if it already seeds or is not complete
+	 */
+	public synchronized boolean startSeeding()
+	{
+		if(seeding || !isCompleted())
+			return false;
+		seeding = true;
+		try {
+			Storage read_only = new MappedStorage(this, f, STORAGE_WINDOW, 0, true);
+			retired_storage = storage;
+			storage = read_only;
+		} catch (IOException e) {
+			logger.error("Could not map the file read only, seeding from the download storage: "+e.getMessage());
 		}
+		logger.info("Download complete, seeding");
 		return true;
 	}
 	
@@ -501,7 +975,7 @@ public class RUBTClient {
 	 * returns the completed bit set
 	 * @return
 	 */
-	public BitSet getCompletedBitSet()
+	public ConcurrentBitSet getCompletedBitSet()
 	{
 		return completed_bit_set;
 	}
@@ -515,6 +989,15 @@ public class RUBTClient {
 		return output_file_name;
 	}
 	
+	/**
+	 * Returns the storage pieces are written to and uploaded from
+	 * @return
+	 */
+	public Storage getStorage()
+	{
+		return storage;
+	}
+	
 	/**
 	 * Updates the no of bytes uploaded so far
 	 * @param no_bytes
@@ -557,11 +1040,24 @@ public class RUBTClient {
 	 */
 	public int noPiecesCompleted()
 	{
-		int count = 0;
-		for(int i=0;i<completed_bit_set.size();i++)
-			if(completed_bit_set.get(i))
-				count++;
-		return count;
+		return completed_bit_set.cardinality();
+	}
+	
+	/**
+	 * Returns the no of bytes of the pieces that have been verified and written
+	 * @return
+	 */
+	public synchronized long getVerifiedBytes()
+	{
+		return bytes_verified;
+	}
+	
+	/**
+	 * Returns the percentage of the file that has been verified and written
+	 * @return
+	 */
+	public double getProgress()
+	{
+		return Math.min(100, getVerifiedBytes() * 100.0 / torrent_file.file_length);
 	}
 }
-
@@ -0,0 +1,87 @@
+/**
+ * Measures a transfer rate over a sliding window.
+ * <br>Bytes are added to one second bins kept in a ring, timed with
+ * System.nanoTime, so the rate follows what the peer is doing now
+ * rather than its average since it connected.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class RateMeter {
+
+	private final static long 	SECOND = 1000000000L;
+	
+	private long[] 		bins;
+	private long 		start;
+	//second the newest bin belongs to
+	private long 		current;
+	private long 		total;
+	
+	/**
+	 * @param window the no of seconds the rate is measured over
+	 */
+	RateMeter(int window)
+	{
+		bins = new long[Math.max(1, window)];
+		start = System.nanoTime();
+		current = 0;
+	}
+	
+	/**
+	 * Counts bytes transferred now
+	 * @param bytes
+	 */
+	public synchronized void add(long bytes)
+	{
+		advance();
+		bins[(int)(current % bins.length)] += bytes;
+		total += bytes;
+	}
+	
+	/**
+	 * Returns the rate in bytes/s over the window,
+	 * or since the start while the window has not filled up yet
+	 * @return
+	 */
+	public synchronized double getRate()
+	{
+		advance();
+		long sum = 0;
+		for(int i=0;i<bins.length;i++)
+			sum += bins[i];
+		double elapsed = (double)(System.nanoTime() - start) / SECOND;
+		double window = Math.min(bins.length, Math.max(1, elapsed));
+		return sum / window;
+	}
+	
+	/**
+	 * Returns the average rate in bytes/s since the start
+	 * @return
+	 */
+	public synchronized double getAverage()
+	{
+		double elapsed = (double)(System.nanoTime() - start) / SECOND;
+		return total / Math.max(1, elapsed);
+	}
+	
+	/**
+	 * Returns the no of bytes counted since the start
+	 * @return
+	 */
+	public synchronized long getTotal()
+	{
+		return total;
+	}
+	
+	//clears the bins of the seconds that went by without a transfer
+	private void advance()
+	{
+		long now = (System.nanoTime() - start) / SECOND;
+		if(now == current)
+			return;
+		long gap = Math.min(now - current, bins.length);
+		for(long s=1;s<=gap;s++)
+			bins[(int)((current + s) % bins.length)] = 0;
+		current = now;
+	}
+}
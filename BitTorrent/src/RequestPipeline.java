@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps a window of block requests in flight to one peer.
+ * <br>Instead of asking for the next block only once the previous one arrived,
+ * the pipeline fills its window with blocks handed out by the BlockScheduler
+ * and tracks every outstanding request so it can be cancelled or handed back.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class RequestPipeline {
+
+	private PeerController 				pc;
+	private BlockScheduler 				scheduler;
+	private int 						depth;
+	private LinkedList<BlockRequest> 	outstanding;
+	//requests cancelled lately, whose block may still be on its way
+	private LinkedList<BlockRequest> 	cancelled;
+	
+	RequestPipeline(PeerController pc, BlockScheduler scheduler, int depth)
+	{
+		this.pc = pc;
+		this.scheduler = scheduler;
+		this.depth = Math.max(1, depth);
+		outstanding = new LinkedList<BlockRequest>();
+		cancelled = new LinkedList<BlockRequest>();
+	}
+	
+	/**
+	 * Sends requests until the window is full or the scheduler has no block for the peer
+	 */
+	public synchronized void fill()
+	{
+		while(outstanding.size() < depth)
+		{
+			BlockRequest r = scheduler.next(pc);
+			if(r == null)
+				return;
+			if(!pc.peer.request(r.index, r.begin, r.length))
+			{
+				scheduler.abandon(r, pc);
+				return;
+			}
+			outstanding.add(r);
+		}
+	}
+	
+	/**
+	 * Marks a block as received
+	 * @param index
+	 * @param begin
+	 * @param length
+	 * @return false if the block was never requested
+	 */
+	public synchronized boolean received(int index, int begin, int length)
+	{
+		for(Iterator<BlockRequest> it = outstanding.iterator(); it.hasNext();)
+		{
+			if(it.next().matches(index, begin, length))
+			{
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Drops a request whose block has arrived from another peer
+	 * @param r
+	 * @return false if the request was not outstanding
+	 */
+	public synchronized boolean cancel(BlockRequest r)
+	{
+		if(!outstanding.remove(r))
+			return false;
+		cancelled.add(r);
+		if(cancelled.size() > depth)
+			cancelled.removeFirst();
+		return true;
+	}
+	
+	/**
+	 * Checks if a block that was not outstanding had been cancelled,
+	 * meaning the peer sent it before it got our cancel
+	 * @param index
+	 * @param begin
+	 * @param length
+	 * @return
+	 */
+	public synchronized boolean wasCancelled(int index, int begin, int length)
+	{
+		return cancelled.remove(new BlockRequest(index, begin, length));
+	}
+	
+	/**
+	 * Drops all the outstanding requests without telling the peer, used when
+	 * the peer choked us and so discarded them already, or went away.
+	 * The blocks are handed back to the scheduler.
+	 * @return the requests that were outstanding
+	 */
+	public synchronized ArrayList<BlockRequest> clear()
+	{
+		ArrayList<BlockRequest> dropped = new ArrayList<BlockRequest>(outstanding);
+		outstanding.clear();
+		for(BlockRequest r : dropped)
+			scheduler.abandon(r, pc);
+		return dropped;
+	}
+	
+	/**
+	 * Returns the number of requests in flight
+	 * @return
+	 */
+	public synchronized int getOutstandingCount()
+	{
+		return outstanding.size();
+	}
+}
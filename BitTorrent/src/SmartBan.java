@@ -0,0 +1,153 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Finds the peers that send corrupt data.
+ * <br>When a piece fails its hash check the SHA-1 of every block is kept along
+ * with the controller that sent it. A piece that came from a single peer
+ * convicts that peer right away. Otherwise every peer that took part is a
+ * suspect for the piece and the piece is fetched from other peers where possible.
+ * Once the piece passes, each kept block is compared with the good one and
+ * the peers that sent a different block are banned.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class SmartBan {
+
+	private Logger 									logger;
+	private HashMap<Integer,ArrayList<BlockRecord>> records;
+	private MessageDigest 							sha;
+	private long 									failed_pieces;
+	private long 									banned;
+	
+	SmartBan(RUBTClient r)
+	{
+		logger = r.logger;
+		records = new HashMap<Integer,ArrayList<BlockRecord>>();
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			logger.error("SHA-1 not available, corrupt peers will not be banned");
+		}
+	}
+	
+	/**
+	 * Called when a piece failed its hash check
+	 * @param piece
+	 */
+	public void pieceFailed(PartialPiece piece)
+	{
+		HashSet<PeerController> senders = new HashSet<PeerController>();
+		synchronized(this){
+			failed_pieces++;
+			if(sha == null)
+				return;
+			ArrayList<BlockRecord> list = records.get(piece.index);
+			if(list == null)
+			{
+				list = new ArrayList<BlockRecord>();
+				records.put(piece.index, list);
+			}
+			for(int b=0;b<piece.getBlockCount();b++)
+			{
+				PeerController pc = piece.getSource(b);
+				senders.add(pc);
+				list.add(new BlockRecord(b, pc, digest(piece, b)));
+			}
+		}
+		
+		if(senders.size() == 1)
+		{
+			PeerController pc = senders.iterator().next();
+			logger.error("Peer "+pc.peer.getPeerID()+" sent all of corrupt piece "+piece.index);
+			ban(pc);
+			return;
+		}
+		//every sender is a suspect, get the piece from someone else if we can
+		for(PeerController pc : senders)
+			pc.peer.corrupted_bit_set.set(piece.index, true);
+	}
+	
+	/**
+	 * Called when a piece passed its hash check, convicts the peers
+	 * that sent a different block for it before
+	 * @param piece
+	 */
+	public void piecePassed(PartialPiece piece)
+	{
+		HashSet<PeerController> guilty = new HashSet<PeerController>();
+		synchronized(this){
+			ArrayList<BlockRecord> list = records.remove(piece.index);
+			if(list == null)
+				return;
+			byte[][] good = new byte[piece.getBlockCount()][];
+			for(BlockRecord r : list)
+			{
+				if(good[r.block] == null)
+					good[r.block] = digest(piece, r.block);
+				if(!MessageDigest.isEqual(good[r.block], r.digest))
+					guilty.add(r.source);
+			}
+		}
+		for(PeerController pc : guilty)
+		{
+			logger.error("Peer "+pc.peer.getPeerID()+" sent a corrupt block of piece "+piece.index);
+			ban(pc);
+		}
+	}
+	
+	/**
+	 * Returns the no of pieces that failed their hash check
+	 * @return
+	 */
+	public synchronized long getFailedCount()
+	{
+		return failed_pieces;
+	}
+	
+	/**
+	 * Returns the no of peers banned
+	 * @return
+	 */
+	public synchronized long getBannedCount()
+	{
+		return banned;
+	}
+	
+	private void ban(PeerController pc)
+	{
+		if(!pc.ban())
+			return;
+		synchronized(this){
+			banned++;
+		}
+	}
+	
+	private byte[] digest(PartialPiece piece, int b)
+	{
+		sha.reset();
+		sha.update(piece.buf.array(), piece.buf.arrayOffset() + piece.getBegin(b), piece.getLength(b));
+		return sha.digest();
+	}
+	
+	/**
+	 * A block of a piece that failed, and who sent it
+	 */
+	private static class BlockRecord
+	{
+		private int 			block;
+		private PeerController 	source;
+		private byte[] 			digest;
+		
+		BlockRecord(int block, PeerController source, byte[] digest)
+		{
+			this.block = block;
+			this.source = source;
+			this.digest = digest;
+		}
+	}
+}
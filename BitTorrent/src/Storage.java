@@ -0,0 +1,54 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Where the pieces of the torrent are kept.
+ * <br>RUBTClient writes verified pieces through it and PeerControllers
+ * upload blocks from it.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public interface Storage {
+
+	/**
+	 * Plain FileChannel reads and writes, see FileStorage
+	 */
+	public final static String TYPE_FILE = "file";
+	/**
+	 * The file is memory mapped, see MappedStorage
+	 */
+	public final static String TYPE_MMAP = "mmap";
+	
+	/**
+	 * Writes a verified piece
+	 * @param piece_no
+	 * @param piece the piece, from its position to its limit
+	 * @return true if written
+	 */
+	public boolean write(int piece_no, ByteBuffer piece);
+	
+	/**
+	 * Sends a block to a peer in a piece message
+	 * @param p the peer
+	 * @param index piece index
+	 * @param begin offset in the piece
+	 * @param length
+	 * @return true if the message was sent
+	 */
+	public boolean upload(Peer p, int index, int begin, int length);
+	
+	/**
+	 * Sends a run of adjacent blocks of one piece to a peer, reading them in one go
+	 * @param p the peer
+	 * @param index piece index
+	 * @param run the requests, each block starting where the one before it ends
+	 * @return true if all the messages were sent
+	 */
+	public boolean upload(Peer p, int index, List<BlockRequest> run);
+	
+	/**
+	 * Forces everything written so far to the disk and releases the file
+	 */
+	public void close();
+}
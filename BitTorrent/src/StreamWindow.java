@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks pieces in file order ahead of a read cursor, for consumers that
+ * read the download front to back while it is still running.
+ * <br>The pieces within the window ahead of the cursor get a deadline: the
+ * consumer is expected to reach the piece d places ahead of the cursor d piece
+ * times after it moved there. A window piece goes to the fastest peer that has
+ * it and can fetch it before its deadline at the rate it has been sending to us,
+ * a peer that has sent us nothing yet only takes it when no measured peer has it.
+ * Once the deadline has passed any peer that has it may take it. Pieces outside
+ * the window are left to the rarest first PiecePicker.
+ * <br>The cursor is moved by the consumer through {@link RUBTClient#setStreamPosition(long)}.
+ * <br>Not thread safe, the RUBTClient calls it while holding its lock.
+ * 
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class StreamWindow {
+
+	private RUBTClient 	rubt;
+	private int 		window;
+	private int 		piece_time;
+	private int 		cursor;
+	private long 		cursor_time;
+	
+	/**
+	 * @param r
+	 * @param window the no of pieces ahead of the cursor fetched in order
+	 * @param piece_time the time in ms the consumer takes to read a piece
+	 */
+	StreamWindow(RUBTClient r, int window, int piece_time)
+	{
+		rubt = r;
+		this.window = Math.max(1, window);
+		this.piece_time = Math.max(1, piece_time);
+		cursor = 0;
+		cursor_time = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Moves the read cursor, the deadlines of the window restart from now
+	 * @param piece
+	 */
+	public void setCursor(int piece)
+	{
+		cursor = Math.max(0, Math.min(piece, rubt.getNoPieces() - 1));
+		cursor_time = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Returns the piece the consumer is reading
+	 * @return
+	 */
+	public int getCursor()
+	{
+		return cursor;
+	}
+	
+	/**
+	 * Picks the first window piece the peer has and can fetch in time
+	 * that no faster peer has
+	 * @param pc
+	 * @param picker
+	 * @param completed
+	 * @return the piece or -1 if there is none for this peer
+	 */
+	public int pick(PeerController pc, PiecePicker picker, ConcurrentBitSet completed)
+	{
+		int start = cursor;
+		while(start < rubt.getNoPieces() && completed.get(start))
+			start++;
+		int end = Math.min(start + window, rubt.getNoPieces());
+		
+		long now = System.currentTimeMillis();
+		double rate = pc.getDownloadRate();
+		List<PeerController> faster = getFasterPeers(pc, rate);
+		for(int i=start;i<end;i++)
+		{
+			if(!picker.isPickable(i) || !pc.pieceExists(i) || pc.isSuspect(i))
+				continue;
+			long deadline = cursor_time + (long)(i - cursor + 1) * piece_time;
+			if(now >= deadline)
+				return i;
+			//left to a faster peer, it takes the piece when it next asks for work
+			if(hasPiece(faster, i))
+				continue;
+			if(rate == 0 || now + (long)(rubt.getPieceLength(i) * 1000 / rate) <= deadline)
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the peers that can send us pieces and have been sending faster than rate.
+	 * For an unmeasured peer that is every measured peer.
+	 */
+	private List<PeerController> getFasterPeers(PeerController pc, double rate)
+	{
+		List<PeerController> faster = new ArrayList<PeerController>();
+		if(pc.getController() == null)
+			return faster;
+		for(PeerController other : pc.getController().getPeerControllers())
+			if(other != pc && other.isRunning() && !other.peer.isPeerChoking() && other.getDownloadRate() > rate)
+				faster.add(other);
+		return faster;
+	}
+	
+	private boolean hasPiece(List<PeerController> peers, int i)
+	{
+		for(PeerController other : peers)
+			if(other.pieceExists(i) && !other.isSuspect(i))
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Limits the no of bytes per second sent or received.
+ * <br>Buckets form a hierarchy, global -> torrent -> peer, and bytes are only
+ * granted when every bucket up the chain has the tokens for them. A bucket
+ * never hands out more than {@link #QUANTUM} bytes at a time when it is limited
+ * so the peers take turns on the shared budget instead of one fast peer draining it.
+ * <br>Limits can be changed at any time, a peer bucket created with
+ * {@link #newChild()} follows the per peer limit set on its parent until
+ * it is given a limit of its own.
+ *
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class TokenBucket {
+
+	/**
+	 * Max no of bytes handed out by a limited bucket in one go
+	 */
+	public final static int 	QUANTUM = 16 * 1024;
+	/**
+	 * Max time in ms spent waiting for tokens before checking again
+	 */
+	final static int 			MAX_WAIT = 100;
+
+	private TokenBucket 	parent;
+	private long 			rate;
+	private boolean 		inherit;
+	private volatile long 	child_rate;
+	private double 			tokens;
+	private long 			last_refill;
+
+	/**
+	 * Creates a bucket
+	 * @param rate bytes per second, 0 for no limit
+	 * @param parent the bucket above this one, null for the top of the hierarchy
+	 */
+	TokenBucket(long rate, TokenBucket parent)
+	{
+		this.rate = Math.max(0, rate);
+		this.parent = parent;
+		last_refill = System.nanoTime();
+		tokens = getCapacity();
+	}
+
+	/**
+	 * Creates a bucket under this one limited by the per peer limit of this bucket
+	 * @return
+	 */
+	public TokenBucket newChild()
+	{
+		TokenBucket child = new TokenBucket(child_rate, this);
+		child.inherit = true;
+		return child;
+	}
+
+	/**
+	 * Sets the limit of this bucket, it no longer follows its parent's per peer limit
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public synchronized void setRate(long rate)
+	{
+		refill();
+		inherit = false;
+		this.rate = Math.max(0, rate);
+		tokens = Math.min(tokens, getCapacity());
+	}
+
+	/**
+	 * Returns the limit of this bucket in bytes per second, 0 if it has none
+	 * @return
+	 */
+	public long getRate()
+	{
+		return inherit ? parent.child_rate : rate;
+	}
+
+	/**
+	 * Sets the limit of the buckets created with {@link #newChild()}
+	 * that have no limit of their own
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public void setChildRate(long rate)
+	{
+		child_rate = Math.max(0, rate);
+	}
+
+	/**
+	 * Returns the limit of the buckets under this one
+	 * @return
+	 */
+	public long getChildRate()
+	{
+		return child_rate;
+	}
+
+	/**
+	 * Checks if this bucket or one above it has a limit
+	 * @return
+	 */
+	public boolean isLimited()
+	{
+		return getRate() > 0 || (parent != null && parent.isLimited());
+	}
+
+	/**
+	 * Takes up to wanted bytes from this bucket and the ones above it
+	 * @param wanted
+	 * @return the no of bytes that may be transferred, 0 if the chain is out of tokens
+	 */
+	public int take(int wanted)
+	{
+		int grant = wanted;
+		synchronized(this)
+		{
+			if(getRate() > 0)
+			{
+				refill();
+				grant = (int)Math.min(grant, Math.min(QUANTUM, (long)tokens));
+				if(grant <= 0)
+					return 0;
+				tokens -= grant;
+			}
+		}
+		if(parent != null && grant > 0)
+		{
+			int granted = parent.take(grant);
+			if(granted < grant)
+				give(grant - granted);
+			grant = granted;
+		}
+		return grant;
+	}
+
+	/**
+	 * Gives back tokens that were taken but not used
+	 * @param unused
+	 */
+	public void refund(int unused)
+	{
+		if(unused <= 0)
+			return;
+		give(unused);
+		if(parent != null)
+			parent.refund(unused);
+	}
+
+	private synchronized void give(int n)
+	{
+		if(getRate() > 0)
+			tokens = Math.min(getCapacity(), tokens + n);
+	}
+
+	/**
+	 * Checks if some bytes can be taken right now
+	 * @return
+	 */
+	public boolean hasTokens()
+	{
+		synchronized(this)
+		{
+			if(getRate() > 0)
+			{
+				refill();
+				if(tokens < 1)
+					return false;
+			}
+		}
+		return parent == null || parent.hasTokens();
+	}
+
+	/**
+	 * Waits until the bucket is likely to have tokens again, at most {@link #MAX_WAIT} ms
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException
+	{
+		Thread.sleep(Math.max(1, Math.min(MAX_WAIT, getWait())));
+	}
+
+	private long getWait()
+	{
+		long wait = 0;
+		synchronized(this)
+		{
+			long r = getRate();
+			if(r > 0)
+			{
+				refill();
+				if(tokens < 1)
+					wait = (long)Math.ceil((1 - tokens) * 1000 / r);
+			}
+		}
+		return parent == null ? wait : Math.max(wait, parent.getWait());
+	}
+
+	/**
+	 * Blocks until n bytes have been taken, used by the blocking transports
+	 * @param n
+	 * @throws InterruptedException
+	 */
+	public void acquire(int n) throws InterruptedException
+	{
+		while(n > 0)
+		{
+			int granted = take(n);
+			if(granted == 0)
+				await();
+			n -= granted;
+		}
+	}
+
+	private long getCapacity()
+	{
+		//at most one second worth of tokens can build up
+		return Math.max(QUANTUM, getRate());
+	}
+
+	private void refill()
+	{
+		long now = System.nanoTime();
+		long r = getRate();
+		if(r > 0)
+			tokens = Math.min(getCapacity(), tokens + (now - last_refill) * r / 1e9);
+		last_refill = now;
+	}
+}
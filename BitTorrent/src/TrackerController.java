@@ -2,22 +2,29 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tracker Controller contacts the tracker
  * at regular intervals and updates the peer list.
+ * <br>Runs on the Controller's scheduler, every announce schedules the next
+ * one after the interval the tracker asked for.
  * 
  * @author Harshil Shah
  * @author Tedd Noh
  */
-public class TrackerController extends Thread{
+public class TrackerController implements Runnable{
 
 	private Tracker 	tracker;
 	private Controller 	controller;
 	private Logger 		logger;
 	private RUBTClient 	rubt;
 	
-	private boolean 	am_alive;
+	private volatile boolean 	am_alive;
+	private ScheduledExecutorService 	scheduler;
+	private ScheduledFuture<?> 			next;
 	
 	TrackerController(RUBTClient r, Tracker t,Controller c)
 	{
@@ -28,19 +35,35 @@ public class TrackerController extends Thread{
 		am_alive = true;
 	}
 	
-	public void run()
+	/**
+	 * Schedules the first announce after the tracker's interval
+	 * @param s
+	 */
+	void schedule(ScheduledExecutorService s)
 	{
 		logger.debug("TrackerController has started..");
-		while(am_alive)
-		{
-			try {
-				//sleeps for the time of the interval and then contacts the tracker
-				Thread.sleep(tracker.getInterval()*1000);
-				if(am_alive)
+		scheduler = s;
+		scheduleNext();
+	}
+	
+	private synchronized void scheduleNext()
+	{
+		if(am_alive && !scheduler.isShutdown())
+			next = scheduler.schedule(this, tracker.getInterval(), TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Contacts the tracker and schedules the next announce
+	 */
+	public void run()
+	{
+		try {
+			if(am_alive)
 				contactTracker();
-			} catch (InterruptedException e) {logger.error("TrackerController Interrupted!!");}
+		} catch (Exception e) {
+			logger.error("Could not contact the tracker: "+e.getMessage());
 		}
-		logger.debug("TrackerController is shutting down..");
+		scheduleNext();
 	}
 	
 	private void contactTracker()
@@ -68,7 +91,12 @@ public class TrackerController extends Thread{
 	 */
 	public void suicide()
 	{
+		synchronized(this){
+			am_alive = false;
+			if(next != null)
+				next.cancel(false);
+		}
+		logger.debug("TrackerController is shutting down..");
 		tracker.connect(rubt.getUploadedBytes(), rubt.getDownloadedBytes(),rubt.getBytesLeft(), "stopped");
-		am_alive = false;
 	}
 }
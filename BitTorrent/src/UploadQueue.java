@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The blocks one peer asked us for that have not been sent yet.
+ * <br>Requests are queued by the PeerController that receives them and served
+ * by the {@link UploadScheduler}. The queue is bounded, a request for a block
+ * that is already queued is ignored and a cancel message takes the block out.
+ *
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class UploadQueue {
+
+	private LinkedList<BlockRequest> 	requests;
+	private int 						capacity;
+	private long 						dropped;
+	private long 						duplicates;
+	private long 						cancelled;
+
+	UploadQueue(int capacity)
+	{
+		requests = new LinkedList<BlockRequest>();
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Queues a request
+	 * @param r
+	 * @return false if the block is already queued or the queue is full
+	 */
+	public synchronized boolean add(BlockRequest r)
+	{
+		if(requests.contains(r))
+		{
+			duplicates++;
+			return false;
+		}
+		if(requests.size() >= capacity)
+		{
+			dropped++;
+			return false;
+		}
+		requests.add(r);
+		return true;
+	}
+
+	/**
+	 * Takes a block out of the queue after a cancel message
+	 * @param r
+	 * @return true if the block was still queued
+	 */
+	public synchronized boolean cancel(BlockRequest r)
+	{
+		if(requests.remove(r))
+		{
+			cancelled++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the first request and up to max-1 queued requests for the blocks right
+	 * behind it in the same piece, so they can be read from the disk in one go
+	 * @param max
+	 * @return the requests in order, empty if nothing is queued
+	 */
+	public synchronized List<BlockRequest> nextRun(int max)
+	{
+		List<BlockRequest> run = new ArrayList<BlockRequest>();
+		if(requests.isEmpty())
+			return run;
+		BlockRequest last = requests.removeFirst();
+		run.add(last);
+		boolean found = true;
+		while(found && run.size() < max)
+		{
+			found = false;
+			for(Iterator<BlockRequest> it = requests.iterator(); it.hasNext();)
+			{
+				BlockRequest r = it.next();
+				if(r.index == last.index && r.begin == last.begin + last.length)
+				{
+					it.remove();
+					run.add(r);
+					last = r;
+					found = true;
+					break;
+				}
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Drops every queued request, such as when the peer is choked
+	 * @return the no of requests dropped
+	 */
+	public synchronized int clear()
+	{
+		int n = requests.size();
+		requests.clear();
+		return n;
+	}
+
+	/**
+	 * Checks if there is nothing to send
+	 * @return
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return requests.isEmpty();
+	}
+
+	/**
+	 * Returns the no of queued requests
+	 * @return
+	 */
+	public synchronized int size()
+	{
+		return requests.size();
+	}
+
+	/**
+	 * Returns the no of requests ignored because the queue was full
+	 * @return
+	 */
+	public synchronized long getDroppedCount()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Returns the no of requests ignored because the block was already queued
+	 * @return
+	 */
+	public synchronized long getDuplicateCount()
+	{
+		return duplicates;
+	}
+
+	/**
+	 * Returns the no of queued requests taken out by cancel messages
+	 * @return
+	 */
+	public synchronized long getCancelledCount()
+	{
+		return cancelled;
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.LinkedList;
+
+/**
+ * Serves the blocks requested by all the peers from one thread.
+ * <br>Peers with queued requests take turns, each turn a peer gets one run
+ * of up to {@link RUBTClient#UPLOAD_BATCH} adjacent blocks read from the
+ * storage in one go, so a peer that pipelines many requests cannot keep the
+ * disk to itself. A peer is skipped while it still has a run waiting to be
+ * written or its upload limit is used up.
+ * <br>The blocks are only queued on the peer here, the event loop or the
+ * thread that owns the connection writes them out, so a slow peer never holds
+ * up the others.
+ *
+ * @author Harshil Shah
+ * @author Tedd Noh
+ */
+public class UploadScheduler extends Thread{
+
+	/**
+	 * The peer has no more requests queued
+	 */
+	final static int 	EMPTY   = 0;
+	/**
+	 * A run was sent and more requests are queued
+	 */
+	final static int 	SERVED  = 1;
+	/**
+	 * The peer cannot take more data right now
+	 */
+	final static int 	BLOCKED = 2;
+	/**
+	 * Time in ms the scheduler waits when every peer with requests is blocked
+	 */
+	final static int 	POLL = 20;
+
+	private LinkedList<PeerController> 	ready;
+	private Logger 						logger;
+	private int 						batch;
+	private volatile boolean 			am_alive;
+	private long 						runs;
+	private long 						blocks;
+
+	UploadScheduler(RUBTClient r, int batch)
+	{
+		super("UploadScheduler");
+		setDaemon(true);
+		logger = r.logger;
+		this.batch = Math.max(1, batch);
+		ready = new LinkedList<PeerController>();
+		am_alive = true;
+	}
+
+	/**
+	 * Puts a controller with queued requests in line to be served
+	 * @param pc
+	 */
+	public synchronized void schedule(PeerController pc)
+	{
+		if(!ready.contains(pc))
+		{
+			ready.add(pc);
+			notify();
+		}
+	}
+
+	public void run()
+	{
+		logger.debug("UploadScheduler has started..");
+		int blocked = 0;
+		while(am_alive)
+		{
+			PeerController pc;
+			synchronized(this)
+			{
+				try {
+					while(ready.isEmpty() && am_alive)
+						wait();
+					//every peer in line was blocked, give the sockets time to drain
+					if(blocked > 0 && blocked >= ready.size())
+					{
+						blocked = 0;
+						wait(POLL);
+					}
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(ready.isEmpty())
+					continue;
+				pc = ready.removeFirst();
+			}
+
+			int result;
+			try {
+				result = pc.serveUploads(batch);
+			} catch (Exception e) {
+				logger.error("Could not serve uploads of PeerController "+pc.getPCId()+": "+e.getMessage());
+				result = EMPTY;
+			}
+			if(result == SERVED)
+				blocked = 0;
+			else if(result == BLOCKED)
+				blocked++;
+			if(result != EMPTY)
+				schedule(pc);
+		}
+		logger.debug("UploadScheduler is shutting down..");
+	}
+
+	/**
+	 * Counts a run of blocks that was sent
+	 * @param n the no of blocks in the run
+	 */
+	synchronized void served(int n)
+	{
+		runs++;
+		blocks += n;
+	}
+
+	/**
+	 * Returns the average no of blocks read from the disk at once
+	 * @return
+	 */
+	public synchronized double getBlocksPerRun()
+	{
+		return runs == 0 ? 0 : (double)blocks / runs;
+	}
+
+	/**
+	 * Safely stops the scheduler
+	 */
+	public void suicide()
+	{
+		am_alive = false;
+		interrupt();
+	}
+}